@@ -0,0 +1,81 @@
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+/**
+ * Program that compares IntIntMap with HashMap&lt;Integer,Integer&gt; for
+ * throughput of put and get, and for memory use. Each measurement is
+ * repeated, and the best round is reported, so that the first rounds serve
+ * as warmup for the JIT compiler.
+ *
+ * Arguments: [n [rounds]], the number of keys (default 1000000) and the
+ * number of rounds (default 10).
+ */
+public class HashBench {
+    static volatile long sink;   // keeps results alive
+
+    interface Table {
+        void put(int key, int value);
+        int get(int key);
+    }
+
+    static Table primitive(int expected) {
+        final IntIntMap m = new IntIntMap(expected);
+        return new Table() {
+            public void put(int key, int value) { m.put(key, value); }
+            public int get(int key) { return m.get(key, -1); }
+        };
+    }
+
+    static Table boxed(int expected) {
+        final HashMap<Integer, Integer> m = new HashMap<Integer, Integer>();
+        return new Table() {
+            public void put(int key, int value) { m.put(key, value); }
+            public int get(int key) {
+                Integer v = m.get(key);
+                return v == null ? -1 : v;
+            }
+        };
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        SplittableRandom random = new SplittableRandom(42);
+        int[] keys = new int[n], misses = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt();
+            misses[i] = random.nextInt();
+        }
+        System.out.printf("%d keys, best of %d rounds, ns per operation%n", n, rounds);
+        System.out.printf("%-10s %8s %8s %8s %10s%n", "", "put", "get", "miss", "MB");
+        for (int kind = 0; kind < 2; kind++) {
+            String name = kind == 0 ? "IntIntMap" : "HashMap";
+            double put = Double.MAX_VALUE, get = Double.MAX_VALUE, miss = Double.MAX_VALUE, mb = 0;
+            for (int r = 0; r < rounds; r++) {
+                long before = usedMemory();
+                long t0 = System.nanoTime();
+                Table t = kind == 0 ? primitive(16) : boxed(16);
+                for (int i = 0; i < n; i++) { t.put(keys[i], i); }
+                long t1 = System.nanoTime();
+                long s = 0;
+                for (int i = 0; i < n; i++) { s += t.get(keys[i]); }
+                long t2 = System.nanoTime();
+                for (int i = 0; i < n; i++) { s += t.get(misses[i]); }
+                long t3 = System.nanoTime();
+                sink += s;
+                mb = (usedMemory() - before) / 1e6;
+                put = Math.min(put, (double) (t1 - t0) / n);
+                get = Math.min(get, (double) (t2 - t1) / n);
+                miss = Math.min(miss, (double) (t3 - t2) / n);
+                sink += t.get(0);   // t is live through the memory measurement
+            }
+            System.out.printf("%-10s %8.1f %8.1f %8.1f %10.1f%n", name, put, get, miss, mb);
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) { System.gc(); }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.Arrays;
+
+/**
+ * Map from long to long, without boxing. Open addressing with linear probing
+ * in parallel key and value arrays, whose capacities follow the prime
+ * sequence of {@link Primes}. A slot is found by multiplicative hashing of
+ * the key reduced modulo the capacity with {@link Primes#fastmod}. Removal
+ * shifts following entries back, so there are no tombstones. Key 0 marks
+ * an empty slot, and is kept apart when it is put in the map.
+ */
+public class LongLongMap {
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] keys, values;
+    private int capIndex, capacity, threshold;
+    private long multiplier;
+    private int size;
+    private boolean hasZero;
+    private long zeroValue;
+
+    /** Receives the entries of a map. */
+    public interface Consumer {
+        void accept(long key, long value);
+    }
+
+    public LongLongMap() { this(8); }
+
+    /** Creates a map that holds expected entries without resizing. */
+    public LongLongMap(int expected) {
+        allocate(Primes.nextIndex((int) Math.min(Integer.MAX_VALUE, (long) (expected / MAX_LOAD) + 1)));
+    }
+
+    private void allocate(int index) {
+        capIndex = index;
+        capacity = Primes.prime(index);
+        multiplier = Primes.multiplier(index);
+        threshold = (int) (capacity * MAX_LOAD);
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+
+    private int slot(long key) {
+        return Primes.fastmod((int) (key * 0x9e3779b97f4a7c15L >>> 32), multiplier, capacity);
+    }
+
+    // Returns the slot of key, or the empty slot where it would go.
+    private int find(long key) {
+        int i = slot(key);
+        while (keys[i] != 0 && keys[i] != key) {
+            if (++i == capacity) { i = 0; }
+        }
+        return i;
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public boolean containsKey(long key) {
+        if (key == 0) { return hasZero; }
+        return keys[find(key)] != 0;
+    }
+
+    /** Returns the value of key, or absent if it is not in the map. */
+    public long get(long key, long absent) {
+        if (key == 0) { return hasZero ? zeroValue : absent; }
+        int i = find(key);
+        return keys[i] != 0 ? values[i] : absent;
+    }
+
+    /** Returns the value of key, or 0 if it is not in the map. */
+    public long get(long key) { return get(key, 0); }
+
+    public void put(long key, long value) {
+        if (key == 0) {
+            if (!hasZero) { size++; }
+            hasZero = true;
+            zeroValue = value;
+            return;
+        }
+        int i = find(key);
+        values[i] = value;
+        if (keys[i] == 0) {
+            keys[i] = key;
+            if (++size > threshold) { grow(); }
+        }
+    }
+
+    /** Adds delta to the value of key, which is 0 if absent. Returns the
+      * new value. */
+    public long addTo(long key, long delta) {
+        if (key == 0) {
+            if (!hasZero) { size++; }
+            hasZero = true;
+            return zeroValue += delta;
+        }
+        int i = find(key);
+        long v = values[i] += delta;
+        if (keys[i] == 0) {
+            keys[i] = key;
+            if (++size > threshold) { grow(); }
+        }
+        return v;
+    }
+
+    /** Removes key. Returns true if it was in the map. */
+    public boolean remove(long key) {
+        if (key == 0) {
+            if (!hasZero) { return false; }
+            hasZero = false;
+            zeroValue = 0;
+            size--;
+            return true;
+        }
+        int i = find(key);
+        if (keys[i] == 0) { return false; }
+        shiftBack(i);
+        size--;
+        return true;
+    }
+
+    // Empties slot i, moving back later entries of the same probe run that
+    // could no longer be found past the gap.
+    private void shiftBack(int i) {
+        int j = i;
+        while (true) {
+            if (++j == capacity) { j = 0; }
+            if (keys[j] == 0) { break; }
+            int home = slot(keys[j]);
+            // Move unless home lies cyclically in (i, j].
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        values[i] = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        hasZero = false;
+        zeroValue = 0;
+        size = 0;
+    }
+
+    public void forEach(Consumer c) {
+        if (hasZero) { c.accept(0, zeroValue); }
+        for (int i = 0; i < capacity; i++) {
+            if (keys[i] != 0) { c.accept(keys[i], values[i]); }
+        }
+    }
+
+    private void grow() {
+        if (capIndex + 1 == Primes.size()) { throw new IllegalStateException("Map too large"); }
+        long[] oldKeys = keys, oldValues = values;
+        allocate(capIndex + 1);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = find(oldKeys[j]);
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
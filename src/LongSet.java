@@ -0,0 +1,128 @@
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Set of longs, without boxing. Open addressing with linear probing in an
+ * array whose capacities follow the prime sequence of {@link Primes}. A
+ * slot is found by multiplicative hashing of the key reduced modulo the
+ * capacity with {@link Primes#fastmod}. Removal shifts following keys
+ * back, so there are no tombstones. Key 0 marks an empty slot, and is kept
+ * apart when it is added to the set.
+ */
+public class LongSet {
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] keys;
+    private int capIndex, capacity, threshold;
+    private long multiplier;
+    private int size;
+    private boolean hasZero;
+
+    public LongSet() { this(8); }
+
+    /** Creates a set that holds expected keys without resizing. */
+    public LongSet(int expected) {
+        allocate(Primes.nextIndex((int) Math.min(Integer.MAX_VALUE, (long) (expected / MAX_LOAD) + 1)));
+    }
+
+    private void allocate(int index) {
+        capIndex = index;
+        capacity = Primes.prime(index);
+        multiplier = Primes.multiplier(index);
+        threshold = (int) (capacity * MAX_LOAD);
+        keys = new long[capacity];
+    }
+
+    private int slot(long key) {
+        return Primes.fastmod((int) (key * 0x9e3779b97f4a7c15L >>> 32), multiplier, capacity);
+    }
+
+    // Returns the slot of key, or the empty slot where it would go.
+    private int find(long key) {
+        int i = slot(key);
+        while (keys[i] != 0 && keys[i] != key) {
+            if (++i == capacity) { i = 0; }
+        }
+        return i;
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public boolean contains(long key) {
+        if (key == 0) { return hasZero; }
+        return keys[find(key)] != 0;
+    }
+
+    /** Adds key. Returns true if it was not already in the set. */
+    public boolean add(long key) {
+        if (key == 0) {
+            if (hasZero) { return false; }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int i = find(key);
+        if (keys[i] != 0) { return false; }
+        keys[i] = key;
+        if (++size > threshold) { grow(); }
+        return true;
+    }
+
+    /** Removes key. Returns true if it was in the set. */
+    public boolean remove(long key) {
+        if (key == 0) {
+            if (!hasZero) { return false; }
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int i = find(key);
+        if (keys[i] == 0) { return false; }
+        shiftBack(i);
+        size--;
+        return true;
+    }
+
+    // Empties slot i, moving back later entries of the same probe run that
+    // could no longer be found past the gap.
+    private void shiftBack(int i) {
+        int j = i;
+        while (true) {
+            if (++j == capacity) { j = 0; }
+            if (keys[j] == 0) { break; }
+            int home = slot(keys[j]);
+            // Move unless home lies cyclically in (i, j].
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    public void forEach(LongConsumer c) {
+        if (hasZero) { c.accept(0); }
+        for (int i = 0; i < capacity; i++) {
+            if (keys[i] != 0) { c.accept(keys[i]); }
+        }
+    }
+
+    private void grow() {
+        if (capIndex + 1 == Primes.size()) { throw new IllegalStateException("Set too large"); }
+        long[] oldKeys = keys;
+        allocate(capIndex + 1);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                keys[find(oldKeys[j])] = oldKeys[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+
+/**
+ * Writes a uniformly random permutation of [0, n) to a binary file, which
+ * is memory-mapped, so n is limited by disk rather than heap. Elements are
+ * little-endian unsigned 4-byte ints if n <= 2^32, and 8-byte longs
+ * otherwise.
+ *
+ * The shuffle is a bucket scatter followed by a Fisher-Yates shuffle of each
+ * bucket. Every element goes to a bucket chosen uniformly at random, and the
+ * buckets are laid out one after the other. Since the bucket sizes then have
+ * the right multinomial distribution, and each bucket is uniformly shuffled,
+ * the whole permutation is uniform. The input is split in chunks; the
+ * chunks first count their elements per bucket, and then, replaying the
+ * same random numbers, write them to their places. Chunks, and then
+ * buckets, are processed in parallel. Chunk and bucket sizes depend only on
+ * n, and each has its own generator derived from the seed, so the result
+ * for a seed does not depend on the number of threads.
+ */
+public class MappedShuffle {
+    private static final long REGION = 1L << 30;     // bytes per mapping, below 2 GB
+
+    private final long n;
+    private final int width;
+    private final MappedByteBuffer[] regions;
+
+    private MappedShuffle(FileChannel ch, long n) throws IOException {
+        this.n = n;
+        this.width = n <= 1L << 32 ? 4 : 8;
+        long bytes = n * width;
+        regions = new MappedByteBuffer[(int) ((bytes + REGION - 1) / REGION)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = i * REGION;
+            regions[i] = ch.map(FileChannel.MapMode.READ_WRITE, start, Math.min(REGION, bytes - start));
+            regions[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // Element positions never straddle regions, as REGION is a multiple of width.
+    private long get(long i) {
+        long b = i * width;
+        MappedByteBuffer r = regions[(int) (b / REGION)];
+        int off = (int) (b % REGION);
+        return width == 4 ? r.getInt(off) & 0xffffffffL : r.getLong(off);
+    }
+
+    private void put(long i, long v) {
+        long b = i * width;
+        MappedByteBuffer r = regions[(int) (b / REGION)];
+        int off = (int) (b % REGION);
+        if (width == 4) { r.putInt(off, (int) v); }
+        else            { r.putLong(off, v); }
+    }
+
+    /** Writes a random permutation of [0, n), selected by seed, to file,
+      * using the given number of threads. */
+    public static void shuffle(Path file, long n, long seed, int threads)
+        throws IOException, InterruptedException, ExecutionException {
+        if (n < 1) { throw new IllegalArgumentException("n must be positive: " + n); }
+        // About sqrt(n) chunks and buckets, so the count table is O(n).
+        long part = Math.max(1 << 22, (long) Math.sqrt((double) n) << 8);
+        int chunks = (int) ((n + part - 1) / part), buckets = chunks;
+        SplittableRandom root = new SplittableRandom(seed);
+        long[] chunkSeeds = new long[chunks], bucketSeeds = new long[buckets];
+        for (int c = 0; c < chunks; c++) { chunkSeeds[c] = root.nextLong(); }
+        for (int b = 0; b < buckets; b++) { bucketSeeds[b] = root.nextLong(); }
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedShuffle m = new MappedShuffle(ch, n);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                // Count the elements of each chunk that go to each bucket.
+                long[][] counts = new long[chunks][];
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (int c = 0; c < chunks; c++) {
+                    final int chunk = c;
+                    tasks.add(new Callable<Void>() {
+                            public Void call() {
+                                long[] count = new long[buckets];
+                                SplittableRandom r = new SplittableRandom(chunkSeeds[chunk]);
+                                for (long i = chunk * part, end = Math.min(n, i + part); i < end; i++) {
+                                    count[r.nextInt(buckets)]++;
+                                }
+                                counts[chunk] = count;
+                                return null;
+                            }
+                        });
+                }
+                invokeAll(pool, tasks);
+
+                // Buckets are laid out in order, and within a bucket, the
+                // elements of each chunk in chunk order.
+                long[] bucketStart = new long[buckets + 1];
+                long pos = 0;
+                for (int b = 0; b < buckets; b++) {
+                    bucketStart[b] = pos;
+                    for (int c = 0; c < chunks; c++) {
+                        long k = counts[c][b];
+                        counts[c][b] = pos;
+                        pos += k;
+                    }
+                }
+                bucketStart[buckets] = pos;
+
+                // Replay the bucket choices, writing each element in place.
+                tasks.clear();
+                for (int c = 0; c < chunks; c++) {
+                    final int chunk = c;
+                    tasks.add(new Callable<Void>() {
+                            public Void call() {
+                                long[] next = counts[chunk];
+                                SplittableRandom r = new SplittableRandom(chunkSeeds[chunk]);
+                                for (long i = chunk * part, end = Math.min(n, i + part); i < end; i++) {
+                                    m.put(next[r.nextInt(buckets)]++, i);
+                                }
+                                return null;
+                            }
+                        });
+                }
+                invokeAll(pool, tasks);
+
+                // Shuffle each bucket.
+                tasks.clear();
+                for (int b = 0; b < buckets; b++) {
+                    final int bucket = b;
+                    tasks.add(new Callable<Void>() {
+                            public Void call() {
+                                SplittableRandom r = new SplittableRandom(bucketSeeds[bucket]);
+                                long lo = bucketStart[bucket];
+                                for (long k = bucketStart[bucket + 1] - lo; k > 1; k--) {
+                                    long i = lo + r.nextLong(k), j = lo + k - 1;
+                                    long t = m.get(j); m.put(j, m.get(i)); m.put(i, t);
+                                }
+                                return null;
+                            }
+                        });
+                }
+                invokeAll(pool, tasks);
+            } finally {
+                pool.shutdownNow();
+            }
+            for (MappedByteBuffer r : m.regions) { r.force(); }
+        }
+    }
+
+    private static void invokeAll(ExecutorService pool, List<Callable<Void>> tasks)
+        throws InterruptedException, ExecutionException {
+        for (Future<Void> f : pool.invokeAll(tasks)) { f.get(); }
+    }
+}
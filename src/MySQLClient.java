@@ -1,6 +1,15 @@
 import java.sql.*;
 import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import dk.itu.jesl.multic.ReadCSV;
+import dk.itu.jesl.web.LatencyHistogram;
 
 // A simple JDBC client that works with MySQL. With some tiny changes,
 // this could work with any system that supports JDBC.
@@ -12,6 +21,25 @@ import java.util.*;
 
 /** A simple JDBC client that works with MySQL. */
 public class MySQLClient {
+    private final Callable<Connection> connections;
+    private final Connection conn;
+    private final Statement stmt;
+    private Statement streamStmt = null;
+    private boolean streaming = false;
+    private int sampleRows = 1000;
+    private ConnectionPool pool = null;
+    private final Map<String, KindStats> stats = new TreeMap<String, KindStats>();
+    private StatementCache statements = new StatementCache(64);
+    private ResultCache results = null;
+
+    /** Creates a client with a connection from the given source, which is
+      * also used when a command needs more connections. */
+    MySQLClient(Callable<Connection> connections) throws Exception {
+        this.connections = connections;
+        this.conn = connections.call();
+        this.stmt = conn.createStatement();
+    }
+
     /** Prompts the user for something, with an optional default. */
     static String prompt(String what, String dflt) {
         if (dflt == null) {
@@ -25,17 +53,24 @@ public class MySQLClient {
     /** Runs the client. Arguments are host, user, database, and password, in
       * that order. If less than four arguments are given, or if any of the
       * arguments is "-" the user is prompted for what is missing. If database
-      * is "+" it is taken to be the same as the user. */
+      * is "+" it is taken to be the same as the user. If host is a JDBC URL,
+      * starting with "jdbc:", it is used as is, and database is ignored.
+      * The arguments may be preceded by "-f file" to run a SQL script
+      * instead of reading from the console, and "-j n" to use at most n
+      * connections for parallel statements in scripts. */
     public static void main(String[] args) {
-        try {
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-        } catch (ReflectiveOperationException ex) {
-            System.err.println("Can't load JDBC driver, " + ex);
-            System.exit(1);
-        }
-    
         Console cons = System.console();
 
+        String script = null;
+        int poolSize = 4;
+        int a = 0;
+        while (a + 1 < args.length && ("-f".equals(args[a]) || "-j".equals(args[a]))) {
+            if ("-f".equals(args[a])) { script = args[a+1]; }
+            else                      { poolSize = Integer.parseInt(args[a+1]); }
+            a += 2;
+        }
+        args = Arrays.copyOfRange(args, a, args.length);
+
         String host = args.length <= 0 || "-".equals(args[0]) ? prompt("Host", null) : args[0];
         String user = args.length <= 1 || "-".equals(args[1]) ? prompt("User", null) : args[1];
         String database = args.length <= 2 || "-".equals(args[2]) ?
@@ -43,30 +78,43 @@ public class MySQLClient {
             "+".equals(args[2]) ? user : args[2];
         String password = args.length > 3 ? args[3] : new String(System.console().readPassword("Password: "));
         
-        try {
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-        } catch (ReflectiveOperationException ex) {
-            System.err.println("Can't load JDBC driver, " + ex);
-            System.exit(1);
+        final String url;
+        if (host.startsWith("jdbc:")) {
+            url = host;             // driver found by DriverManager
+        } else {
+            try {
+                Class.forName("com.mysql.jdbc.Driver").newInstance();
+            } catch (ReflectiveOperationException ex) {
+                System.err.println("Can't load JDBC driver, " + ex);
+                System.exit(1);
+            }
+            url = "jdbc:mysql://" + host + "/" + database + "?rewriteBatchedStatements=true&useServerPrepStmts=true";
         }
+        final Properties info = new Properties();
+        info.setProperty("user", user);
+        info.setProperty("password", password);
     
         try {
-            Statement stmt;
+            MySQLClient client;
             try {
-                Connection conn = DriverManager
-                    .getConnection("jdbc:mysql://" + host + "/" + database + "?user=" + user + "&password=" + password);
-                stmt = conn.createStatement();
-            } catch (SQLException ex) {
+                client = new MySQLClient(new Callable<Connection>() {
+                        public Connection call() throws SQLException { return DriverManager.getConnection(url, info); }
+                    });
+            } catch (Exception ex) {
                 System.err.println("Terrible! Problem with connection: " + ex);
                 System.exit(1);
                 throw new IllegalStateException("Exit returned");
             }
+            if (script != null) {
+                System.exit(client.runScript(script, poolSize) ? 0 : 1);
+            }
             while (true) {
                 try {
-                    if (!promptEval(stmt, "sql> ")) { break; }
+                    if (!client.promptEval("sql> ")) { break; }
                 } catch (SQLException ex) {
-                    String className = ex.getClass().getName();
-                    System.err.println(className.substring(className.lastIndexOf('.')+1) + ": " + ex.getMessage());
+                    printError(ex);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Bad command argument: " + ex.getMessage());
                 }
             }
         } catch (IOException ex) {
@@ -75,77 +123,1233 @@ public class MySQLClient {
         }
     }
     
+    /** Writes the simple class name and message of an exception to
+      * standard error. */
+    static void printError(Exception ex) {
+        String className = ex.getClass().getName();
+        System.err.println(className.substring(className.lastIndexOf('.')+1) + ": " + ex.getMessage());
+    }
+
     /** Prompts for an sql snippet, executes it, and writes the result
-      * to console. */
-    static boolean promptEval(Statement stmt, String prompt) throws SQLException, IOException {
+      * to console. Lines starting with a backslash are client commands. */
+    boolean promptEval(String prompt) throws SQLException, IOException {
         Console cons = System.console();
         String s = cons.readLine("%s", prompt);
         if (s == null) { return false; }
         s = s.trim();
         if (s.length() == 0) { return true; }
-        long startTime = System.currentTimeMillis();
-        boolean itsARs = stmt.execute(s);
+        if (s.charAt(0) == '\\') {
+            command(s.substring(1).trim());
+            return true;
+        }
+        Timing t = new Timing();
+        long startTime = System.nanoTime();
+        boolean cacheable = results != null && ResultCache.cacheable(s);
+        CachedResult cached = cacheable ? results.get(s) : null;
+        if (cached != null) {
+            printResult(cached.rows(), 100, t);
+            cons.format(" (cached)");
+            record(s, System.nanoTime() - startTime, t);
+            cons.format(" (%.2f seconds)\n", (System.nanoTime() - startTime) / 1e9);
+            cons.flush();
+            return true;
+        }
+        if (results != null && !ResultCache.readOnly(s)) { results.clear(); }
+        Statement st;
+        boolean itsARs;
+        PreparedStatement ps = StatementCache.preparable(s) ? statements.get(conn, s, streaming) : null;
+        if (ps != null) {
+            st = ps;
+            itsARs = ps.execute();
+        } else {
+            st = streaming ? streamingStatement() : stmt;
+            itsARs = st.execute(s);
+        }
+        t.execute = System.nanoTime() - startTime;
         if (itsARs) {
-            ResultSet rs = stmt.getResultSet();
+            ResultSet rs = st.getResultSet();
+            try {
+                ResultRows rows = new ResultRows(rs, cacheable ? results.maxEntryBytes() : -1);
+                printResult(rows, streaming ? sampleRows : 100, t);
+                if (rows.recorded() != null) { results.put(s, rows.recorded()); }
+                if (streaming) {
+                    cons.format(" (first row %.2f seconds)", (t.firstRow - startTime) / 1e9);
+                }
+            } finally {
+                rs.close();
+            }
+        } else {
+            int ct = st.getUpdateCount();
+            if (ct >= 0) cons.format("%d row%s affected", ct, ct == 1 ? "" : "s");
+            else cons.format("ok");
+            t.rows = Math.max(0, ct);
+        }
+        long time = System.nanoTime() - startTime;
+        cons.format(" (%.2f seconds: execute %.3f, fetch %.3f, render %.3f)\n",
+                    time / 1e9, t.execute / 1e9, t.fetch / 1e9, t.render / 1e9);
+        cons.flush();
+        record(s, time, t);
+        return true;
+    }
+
+    /** Nanoseconds spent in the phases of running one statement, and the
+      * number of rows returned or affected. */
+    static class Timing {
+        long execute, fetch, render, firstRow, rows;
+    }
+
+    /** Latencies and row counts for one kind of statement. */
+    static class KindStats {
+        final LatencyHistogram total = new LatencyHistogram();
+        final LatencyHistogram execute = new LatencyHistogram();
+        final LatencyHistogram fetch = new LatencyHistogram();
+        final LatencyHistogram render = new LatencyHistogram();
+        long rows = 0;
+    }
+
+    // Adds a statement to the session statistics, by its first word.
+    private void record(String sql, long time, Timing t) {
+        String kind = firstWord(sql);
+        if (kind.length() == 0) { kind = "OTHER"; }
+        KindStats k = stats.get(kind);
+        if (k == null) { stats.put(kind, k = new KindStats()); }
+        k.total.record(time);
+        k.execute.record(t.execute);
+        k.fetch.record(t.fetch);
+        k.render.record(t.render);
+        k.rows += t.rows;
+    }
+
+    // Writes the session statistics as a table, times in milliseconds.
+    private void printStats() {
+        Console cons = System.console();
+        String fmt = "%-10s %-8s %7s %10s %10s %10s %10s %10s %10s\n";
+        String num = "%-10s %-8s %7d %10.2f %10.2f %10.2f %10.2f %10.2f %10s\n";
+        cons.format(fmt, "kind", "phase", "count", "mean", "p50", "p90", "p99", "max", "rows");
+        for (Map.Entry<String, KindStats> e : stats.entrySet()) {
+            KindStats k = e.getValue();
+            LatencyHistogram[] hs = { k.total, k.execute, k.fetch, k.render };
+            String[] phases = { "total", "execute", "fetch", "render" };
+            for (int i = 0; i < hs.length; i++) {
+                LatencyHistogram h = hs[i];
+                cons.format(num, i == 0 ? e.getKey() : "", phases[i], h.count(), h.mean() / 1e6,
+                            h.quantile(0.5) / 1e6, h.quantile(0.9) / 1e6, h.quantile(0.99) / 1e6, h.max() / 1e6,
+                            i == 0 ? Long.toString(k.rows) : "");
+            }
+        }
+    }
+
+    /** Executes a client command, given without the backslash. */
+    void command(String s) throws SQLException, IOException {
+        Console cons = System.console();
+        String[] words = s.split("\\s+");
+        if ("stream".equals(words[0])) {
+            if (words.length > 1) { streaming = "on".equals(words[1]); }
+            if (words.length > 2) { sampleRows = Math.max(1, Integer.parseInt(words[2])); }
+            cons.format("streaming %s, column widths from first %d rows\n", streaming ? "on" : "off", sampleRows);
+        } else if ("export".equals(words[0]) && words.length >= 3) {
+            String[] args = s.split("\\s+", 3);
+            long startTime = System.currentTimeMillis();
+            Statement st = streamingStatement();
+            ResultSet rs = st.executeQuery(args[2]);
+            Exporter ex;
+            try {
+                ex = new Exporter(rs, Paths.get(args[1]), args[1].endsWith(".tsv") ? '\t' : ',');
+                ex.run();
+            } catch (IOException e) {
+                printError(e);      // e.g. a file that can't be written; back to the prompt
+                return;
+            } finally {
+                rs.close();
+            }
+            double time = (System.currentTimeMillis() - startTime) / 1000.0;
+            cons.format("%d row%s, %d bytes written to %s (%.2f seconds, %.1f MB/s)\n",
+                        ex.rows, ex.rows == 1 ? "" : "s", ex.bytes, args[1], time, ex.bytes / 1e6 / time);
+        } else if ("load".equals(words[0]) && words.length >= 3) {
+            if (results != null) { results.clear(); }
+            Loader loader = new Loader(connections, words[1],
+                                       words.length > 3 ? Integer.parseInt(words[3]) : 1000,
+                                       words.length > 4 ? Integer.parseInt(words[4]) : 10000,
+                                       words.length > 5 ? Integer.parseInt(words[5]) : 1);
+            long startTime = System.currentTimeMillis();
+            long rows;
+            try (ReadCSV.Streaming in = new ReadCSV.Streaming(new InputStreamReader(new FileInputStream(words[2]), "UTF-8"), ',')) {
+                rows = loader.load(in);
+            } catch (IOException ex) {
+                printError(ex);     // a missing file or bad line ends the load, not the session
+                return;
+            }
+            double time = (System.currentTimeMillis() - startTime) / 1000.0;
+            cons.format("%d row%s loaded into %s (%.2f seconds, %.0f rows/s)\n",
+                        rows, rows == 1 ? "" : "s", words[1], time, rows / time);
+        } else if ("cache".equals(words[0])) {
+            if (words.length > 1 && "on".equals(words[1])) {
+                results = new ResultCache((words.length > 2 ? Long.parseLong(words[2]) : 64) << 20);
+            } else if (words.length > 1 && "off".equals(words[1])) {
+                results = null;
+            } else if (words.length > 2 && "statements".equals(words[1])) {
+                statements.close();
+                statements = new StatementCache(Math.max(0, Integer.parseInt(words[2])));
+            }
+            cons.format("prepared statements: %d of %d cached, %d hits, %d misses\n",
+                        statements.size(), statements.max(), statements.hits, statements.misses);
+            if (results == null) {
+                cons.format("result cache off\n");
+            } else {
+                cons.format("results: %d cached, %.1f of %.1f MB, %d hits, %d misses, %d invalidations\n",
+                            results.size(), results.bytes() / 1e6, results.maxBytes / 1e6,
+                            results.hits, results.misses, results.invalidations);
+            }
+        } else if ("stats".equals(words[0])) {
+            if (words.length > 1 && "reset".equals(words[1])) { stats.clear(); }
+            else                                            { printStats(); }
+        } else if ("run".equals(words[0]) && words.length >= 2) {
+            if (results != null) { results.clear(); }
+            try {
+                runScript(words[1], words.length > 2 ? Integer.parseInt(words[2]) : 4);
+            } catch (IOException ex) {
+                printError(ex);     // missing file or unterminated statement; back to the prompt
+            }
+        } else {
+            cons.format("Unknown command \\%s. Commands are:\n" +
+                        "  \\stream [on|off] [n]  fetch rows one at a time from the server, sizing\n" +
+                        "                        columns from the first n rows\n" +
+                        "  \\export file query    write the result of query to file, as TSV if the\n" +
+                        "                        name ends in .tsv, otherwise as CSV\n" +
+                        "  \\load table file [batch [tx [conns]]]\n" +
+                        "                        insert rows from a CSV file with a header line,\n" +
+                        "                        batch rows per batch (1000), committing every tx\n" +
+                        "                        rows (10000), using conns connections (1)\n" +
+                        "  \\run file [conns]     run a SQL script, with statements between lines\n" +
+                        "                        \"-- @parallel\" and \"-- @end\" run concurrently on\n" +
+                        "                        up to conns connections (4)\n" +
+                        "  \\cache [on [mb]|off]  show statement cache counts; turn on caching of\n" +
+                        "                        select results, up to mb megabytes (64)\n" +
+                        "  \\cache statements n   keep up to n statements prepared on the server\n" +
+                        "                        (64), 0 for none; each is prepared when repeated\n" +
+                        "  \\stats [reset]        show times in ms and row counts of the statements\n" +
+                        "                        run in this session, by kind\n", words[0]);
+        }
+        cons.flush();
+    }
+
+    /** Runs a SQL script file, writing timings to standard output. Returns
+      * true if all statements succeeded. The pool of extra connections is
+      * kept for later scripts, and replaced if a different size is asked for. */
+    boolean runScript(String file, int poolSize) throws IOException {
+        if (pool == null || pool.size() != poolSize) {
+            if (pool != null) { pool.close(); }
+            pool = new ConnectionPool(connections, poolSize);
+        }
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            return new ScriptRunner(conn, pool, System.out).run(ScriptRunner.parse(r));
+        }
+    }
+
+    /** Source of rows of a result, fetched in batches. */
+    interface Rows {
+        String[] names();
+        /** Returns true for each column of a string type, to be left justified. */
+        boolean[] leftJust();
+        /** Returns up to size more rows, or an empty list at the end. */
+        List<Object[]> next(int size) throws SQLException;
+        /** Returns System.nanoTime() when the first row was fetched, or 0
+          * if none has been. */
+        long firstRow();
+    }
+
+    /** Rows from a result set. If given a byte limit, the rows are also
+      * kept, as long as their estimated size stays within it, for putting
+      * in the result cache. */
+    static class ResultRows implements Rows {
+        private final ResultSet rs;
+        private final String[] names;
+        private final boolean[] leftJust;
+        private final long limit;
+        private List<Object[]> kept;
+        private long bytes = 0;
+        private long firstRow = 0;
+
+        ResultRows(ResultSet rs, long limit) throws SQLException {
+            this.rs = rs;
+            this.limit = limit;
             ResultSetMetaData md = rs.getMetaData();
             int cols = md.getColumnCount();
-            
-            int[] widths = new int[cols];
-            StringBuilder headB = new StringBuilder(), sepB = new StringBuilder(), dataB = new StringBuilder();
-            String[] leftJust = new String[cols];
+            names = new String[cols];
+            leftJust = new boolean[cols];
             for (int i = 0; i < cols; i++) {
-                widths[i] = md.getColumnName(i+1).length();
+                names[i] = md.getColumnName(i+1);
                 int colType = md.getColumnType(i+1);
-                leftJust[i] = colType == Types.CHAR || colType == Types.VARCHAR || colType == Types.LONGVARCHAR ? "-" : ""; 
+                leftJust[i] = colType == Types.CHAR || colType == Types.VARCHAR || colType == Types.LONGVARCHAR;
             }
-            List<Object[]> batch = getBatch(rs, cols);
+            kept = limit >= 0 ? new ArrayList<Object[]>() : null;
+        }
+
+        public String[] names() { return names; }
+        public boolean[] leftJust() { return leftJust; }
+
+        public long firstRow() { return firstRow; }
+
+        public List<Object[]> next(int size) throws SQLException {
+            int cols = names.length;
+            ArrayList<Object[]> batch = new ArrayList<Object[]>();
+            for (int j = 0; j < size && rs.next(); j++) {
+                if (firstRow == 0) { firstRow = System.nanoTime(); }
+                Object[] row = new String[cols];
+                for (int i = 0; i < cols; i++) { row[i] = rs.getString(i+1); }
+                batch.add(row);
+            }
+            if (kept != null) {
+                for (Object[] row : batch) { bytes += CachedResult.rowBytes(row); }
+                if (bytes > limit) { kept = null; }
+                else               { kept.addAll(batch); }
+            }
+            return batch;
+        }
+
+        /** Returns all rows as a cacheable result, or null if they were
+          * not kept. Only valid after the last batch is fetched. */
+        CachedResult recorded() {
+            return kept == null ? null : new CachedResult(names, leftJust, kept, bytes);
+        }
+    }
+
+    /** A result kept in memory. */
+    static class CachedResult {
+        final String[] names;
+        final boolean[] leftJust;
+        final List<Object[]> rows;
+        final long bytes;
+
+        CachedResult(String[] names, boolean[] leftJust, List<Object[]> rows, long bytes) {
+            this.names = names;
+            this.leftJust = leftJust;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        /** Rough number of bytes of heap used by a row of strings. */
+        static long rowBytes(Object[] row) {
+            long n = 16 + 4 * row.length;
+            for (Object o : row) {
+                if (o != null) { n += 40 + 2 * ((String) o).length(); }
+            }
+            return n;
+        }
+
+        Rows rows() {
+            return new Rows() {
+                private int pos = 0;
+                private long firstRow = 0;
+                public String[] names() { return names; }
+                public boolean[] leftJust() { return leftJust; }
+                public long firstRow() { return firstRow; }
+                public List<Object[]> next(int size) {
+                    if (firstRow == 0 && pos < rows.size()) { firstRow = System.nanoTime(); }
+                    List<Object[]> batch = rows.subList(pos, Math.min(rows.size(), pos + size));
+                    pos += batch.size();
+                    return batch;
+                }
+            };
+        }
+    }
+
+    /** Prepared statements, kept by SQL text, and closed when evicted as
+      * least recently used. Statements for streaming are kept apart. With
+      * server-side preparing, each one holds a statement on the server, so
+      * a statement is only prepared the second time it is seen; one-off SQL
+      * typed at the prompt runs as a plain statement. The texts seen once
+      * are remembered, in the client only, for the last 4 * max of them. */
+    static class StatementCache {
+        private final int max;
+        private final LinkedHashMap<String, PreparedStatement> map;
+        private final LinkedHashMap<String, Boolean> seen;
+        long hits = 0, misses = 0;
+
+        /** Creates a cache of at most max statements; 0 prepares none. */
+        StatementCache(int max) {
+            this.max = max;
+            map = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+            final int maxSeen = 4 * max;
+            seen = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) { return size() > maxSeen; }
+                };
+        }
+
+        /** Returns true for the kinds of statements that may be prepared. */
+        static boolean preparable(String sql) {
+            String k = firstWord(sql);
+            return "SELECT".equals(k) || "INSERT".equals(k) || "UPDATE".equals(k) ||
+                "DELETE".equals(k) || "REPLACE".equals(k) || "WITH".equals(k);
+        }
+
+        /** Returns a prepared statement for sql, or null if it can't be
+          * prepared, in which case it should be run as a plain statement. */
+        PreparedStatement get(Connection conn, String sql, boolean streaming) throws SQLException {
+            String key = (streaming ? "S:" : "B:") + sql;
+            PreparedStatement ps = map.get(key);
+            if (ps != null) {
+                hits++;
+                return ps;
+            }
+            misses++;
+            if (max == 0) { return null; }
+            if (seen.remove(key) == null) {
+                seen.put(key, Boolean.TRUE);    // prepare if it comes again
+                return null;
+            }
+            try {
+                ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            } catch (SQLException ex) {
+                return null;
+            }
+            if (streaming) {
+                try {
+                    ps.setFetchSize(Integer.MIN_VALUE);
+                } catch (SQLException ex) {
+                    ps.setFetchSize(1000);
+                }
+            }
+            map.put(key, ps);
+            if (map.size() > max) {
+                Iterator<PreparedStatement> it = map.values().iterator();
+                PreparedStatement old = it.next();
+                it.remove();
+                try { old.close(); } catch (SQLException ignore) { }
+            }
+            return ps;
+        }
+
+        int size() { return map.size(); }
+
+        int max() { return max; }
+
+        /** Closes all the statements. */
+        void close() {
+            for (PreparedStatement ps : map.values()) {
+                try { ps.close(); } catch (SQLException ignore) { }
+            }
+            map.clear();
+            seen.clear();
+        }
+    }
+
+    /** Results of read-only queries, kept by SQL text up to a total
+      * estimated size, evicting the least recently used. Since the cache
+      * can't see changes made by other sessions, it is off unless asked for.
+      * Any statement in this session that may write clears it. */
+    static class ResultCache {
+        private final long maxBytes;
+        private long bytes = 0;
+        private final LinkedHashMap<String, CachedResult> map =
+            new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+        long hits = 0, misses = 0, invalidations = 0;
+
+        ResultCache(long maxBytes) { this.maxBytes = maxBytes; }
+
+        /** Returns true for statements that don't change data. */
+        static boolean readOnly(String sql) {
+            String k = firstWord(sql);
+            return ("SELECT".equals(k) && !sql.toUpperCase().matches("(?s).*\\bINTO\\b.*")) ||
+                "SHOW".equals(k) || "DESCRIBE".equals(k) || "DESC".equals(k) || "EXPLAIN".equals(k);
+        }
+
+        /** Returns true for queries whose results may be cached: read-only
+          * selects without locking, variables, or functions whose value
+          * changes from call to call. */
+        static boolean cacheable(String sql) {
+            return "SELECT".equals(firstWord(sql)) && readOnly(sql) && !sql.contains("@") &&
+                !sql.toUpperCase().matches("(?s).*\\b(FOR\\s+UPDATE|LOCK\\s+IN|NOW|RAND|UUID|UUID_SHORT|SYSDATE|CURDATE|CURTIME|" +
+                                           "CURRENT_DATE|CURRENT_TIME|CURRENT_TIMESTAMP|UNIX_TIMESTAMP|LAST_INSERT_ID|" +
+                                           "FOUND_ROWS|ROW_COUNT|CONNECTION_ID|SLEEP|GET_LOCK)\\b.*");
+        }
+
+        /** Largest result worth keeping. */
+        long maxEntryBytes() { return maxBytes / 4; }
+
+        CachedResult get(String sql) {
+            CachedResult r = map.get(sql);
+            if (r != null) { hits++; }
+            else           { misses++; }
+            return r;
+        }
+
+        void put(String sql, CachedResult r) {
+            CachedResult old = map.put(sql, r);
+            if (old != null) { bytes -= old.bytes; }
+            bytes += r.bytes;
+            Iterator<CachedResult> it = map.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= it.next().bytes;
+                it.remove();
+            }
+        }
+
+        void clear() {
+            if (map.size() > 0) { invalidations++; }
+            map.clear();
+            bytes = 0;
+        }
+
+        int size() { return map.size(); }
+        long bytes() { return bytes; }
+    }
+
+    /** Returns the first word of a statement, in upper case. */
+    static String firstWord(String sql) {
+        int start = 0, end;
+        while (start < sql.length() && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '(')) { start++; }
+        end = start;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) { end++; }
+        return sql.substring(start, end).toUpperCase();
+    }
+
+    /** Returns a statement whose result sets are streamed from the server
+      * rather than read into memory at once. */
+    private Statement streamingStatement() throws SQLException {
+        if (streamStmt == null) {
+            streamStmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                streamStmt.setFetchSize(Integer.MIN_VALUE); // MySQL's signal for row streaming
+            } catch (SQLException ex) {
+                streamStmt.setFetchSize(1000);              // other drivers use a cursor
+            }
+        }
+        return streamStmt;
+    }
+
+    /** Writes a result set as a table, with column widths taken from the
+      * first sample rows, writing rows as they arrive. The remaining rows
+      * are fetched by a separate thread into a bounded queue of batches, so
+      * that waiting for the server overlaps with rendering. Rows are padded
+      * into one reused buffer that is written in large chunks, or when the
+      * next batch has not yet arrived. Adds the time spent fetching and
+      * rendering rows to the timing, along with the time the first row was
+      * available and the number of rows. */
+    private void printResult(Rows rows, int sample, Timing t) throws SQLException {
+        Console cons = System.console();
+        PrintWriter out = cons.writer();
+        String[] names = rows.names();
+        boolean[] leftJust = rows.leftJust();
+        int cols = names.length;
+            
+        int[] widths = new int[cols];
+        for (int i = 0; i < cols; i++) { widths[i] = names[i].length(); }
+        long fetchStart = System.nanoTime();
+        List<Object[]> batch = rows.next(sample);
+        long renderStart = System.nanoTime();
+        t.fetch += renderStart - fetchStart;
+        t.firstRow = rows.firstRow() != 0 ? rows.firstRow() : renderStart;
+        Fetcher fetcher = batch.size() < sample ? null : new Fetcher(rows);
+        try {
+            int maxWidth = 0;
             for (Object[] row : batch) {
                 for (int i = 0; i < cols; i++) {
                     widths[i] = Math.max(widths[i], row[i] == null ? 4 : row[i].toString().length() + 2);
                 }
             }
+            StringBuilder sepB = new StringBuilder();
             for (int i = 0; i < cols; i++) {
-                headB.append("| %-").append(Integer.toString(widths[i])).append("s ");
-                dataB.append("| %").append(leftJust[i]).append(Integer.toString(widths[i])).append("s ");
+                maxWidth = Math.max(maxWidth, widths[i]);
                 sepB.append("+");
                 for (int j = 0; j < widths[i]+2; j++) { sepB.append("-"); }
             }
-            String headFmt = headB.append("|\n").toString();
-            String sepFmt = sepB.append("+\n").toString();
-            String dataFmt = dataB.append("|\n").toString();
+            String sep = sepB.append("+\n").toString();
+            char[] spaces = new char[maxWidth];
+            Arrays.fill(spaces, ' ');
 
-            cons.format(sepFmt);
-            Object[] colNames = new String[cols];
-            for (int i = 0; i < cols; i++) { colNames[i] = md.getColumnName(i+1); }
-            cons.format(headFmt, colNames);
-            cons.format(sepFmt);
+            StringBuilder b = new StringBuilder(OUT_CHUNK + 1024);
+            b.append(sep);
+            for (int i = 0; i < cols; i++) { appendField(b, names[i], widths[i], true, spaces); }
+            b.append("|\n").append(sep);
             
             int ct = 0;
             while (batch.size() > 0) {
-                for (Object[] row : batch) { cons.format(dataFmt, row); }
+                for (Object[] row : batch) {
+                    for (int i = 0; i < cols; i++) {
+                        appendField(b, row[i] == null ? "null" : row[i].toString(), widths[i], leftJust[i], spaces);
+                    }
+                    b.append("|\n");
+                    if (b.length() >= OUT_CHUNK) {
+                        out.append(b);
+                        b.setLength(0);
+                    }
+                }
                 ct += batch.size();
-                batch = getBatch(rs, cols);
+                if (fetcher == null) { break; }
+                if (!fetcher.ready()) {
+                    out.append(b);  // show what there is before waiting
+                    out.flush();
+                    b.setLength(0);
+                }
+                t.render += System.nanoTime() - renderStart;
+                batch = fetcher.take();
+                renderStart = System.nanoTime();
             }
-            cons.format(sepFmt);
-            cons.format("%d row%s", ct, ct == 1 ? "" : "s");
-        } else {
-            int ct = stmt.getUpdateCount();
-            if (ct >= 0) cons.format("%d row%s affected", ct, ct == 1 ? "" : "s");
-            else cons.format("ok");
+            b.append(sep);
+            b.append(ct).append(ct == 1 ? " row" : " rows");
+            out.append(b);
+            out.flush();
+            t.render += System.nanoTime() - renderStart;
+            t.rows = ct;
+        } finally {
+            if (fetcher != null) { t.fetch += fetcher.finish(); }
         }
-        long time = System.currentTimeMillis() - startTime;
-        cons.format(" (%.2f seconds)\n", time / 1000.0);
-        cons.flush();
-        return true;
     }
 
-    private static List<Object[]> getBatch(ResultSet rs, int cols) throws SQLException {
-        ArrayList<Object[]> batch = new ArrayList<Object[]>();
-        for (int j = 0; j < 100 && rs.next(); j++) {
-            Object[] row = new String[cols];
-            for (int i = 0; i < cols; i++) { row[i] = rs.getString(i+1); }
-            batch.add(row);
+    private static final int OUT_CHUNK = 64 * 1024;
+
+    // Appends "| " and s padded to width.
+    private static void appendField(StringBuilder b, String s, int width, boolean left, char[] spaces) {
+        int pad = Math.max(0, width - s.length());
+        b.append("| ");
+        if (left) { b.append(s).append(spaces, 0, pad); }
+        else      { b.append(spaces, 0, pad).append(s); }
+        b.append(' ');
+    }
+
+    /** Thread that fetches batches of rows ahead of the renderer, through
+      * a bounded queue. An empty batch marks the end, and a failure is
+      * passed on in place of a batch. */
+    static class Fetcher extends Thread {
+        private static final int BATCH_ROWS = 100, QUEUE_BATCHES = 8;
+
+        private final Rows rows;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_BATCHES);
+        private volatile boolean stopped = false;
+        private long nanos = 0;
+
+        Fetcher(Rows rows) {
+            super("fetcher");
+            this.rows = rows;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                List<Object[]> batch;
+                do {
+                    long start = System.nanoTime();
+                    batch = rows.next(BATCH_ROWS);
+                    nanos += System.nanoTime() - start;
+                    queue.put(batch);
+                } while (batch.size() > 0 && !stopped);
+            } catch (SQLException ex) {
+                try { queue.put(ex); } catch (InterruptedException ignore) { }
+            } catch (InterruptedException ignore) {
+            }
+        }
+
+        /** Returns true if take would not wait. */
+        boolean ready() { return queue.peek() != null; }
+
+        /** Returns the next batch, empty at the end. */
+        @SuppressWarnings("unchecked")
+        List<Object[]> take() throws SQLException {
+            Object o;
+            try {
+                o = queue.take();
+            } catch (InterruptedException ex) {
+                throw new SQLException("interrupted", ex);
+            }
+            if (o instanceof SQLException) { throw (SQLException) o; }
+            return (List<Object[]>) o;
+        }
+
+        /** Stops fetching, waits for the thread to end so that the result
+          * set can be closed, and returns the time spent fetching. */
+        long finish() {
+            stopped = true;
+            queue.clear();  // unblocks a put
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) { Thread.currentThread().interrupt(); }
+            return nanos;
+        }
+    }
+
+    /** Writes a result set to a CSV or TSV file. The calling thread fetches
+      * rows into column batches, reading numeric columns with getLong and
+      * getDouble, while a writer thread encodes the batches into a large
+      * buffer that is written to the file channel. Batches are passed through
+      * a bounded queue and then returned for reuse. CSV fields are quoted
+      * when needed, and NULL is an empty field. TSV escapes tab, newline,
+      * carriage return and backslash, and writes NULL as \\N, as MySQL does. */
+    static class Exporter {
+        private static final int BATCH_ROWS = 4096, QUEUE_BATCHES = 4, BUFFER_SIZE = 1 << 20;
+        private static final int TEXT = 0, LONG = 1, DOUBLE = 2, DECIMAL = 3;
+
+        private final ResultSet rs;
+        private final Path path;
+        private final byte delim;
+        private final int cols;
+        private final int[] kinds;
+        private final String[] names;
+        private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES);
+        private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES + 1);
+        private volatile Throwable writeFailure = null;
+        long rows = 0, bytes = 0;
+
+        /** A batch of rows, stored by column. */
+        private class Batch {
+            int size = 0;
+            final long[][] longs = new long[cols][];
+            final double[][] doubles = new double[cols][];
+            final String[][] texts = new String[cols][];
+            final boolean[][] nulls = new boolean[cols][BATCH_ROWS];
+
+            Batch() {
+                for (int i = 0; i < cols; i++) {
+                    if      (kinds[i] == LONG)   { longs[i] = new long[BATCH_ROWS]; }
+                    else if (kinds[i] == DOUBLE) { doubles[i] = new double[BATCH_ROWS]; }
+                    else                         { texts[i] = new String[BATCH_ROWS]; }
+                }
+            }
+        }
+
+        Exporter(ResultSet rs, Path path, char delim) throws SQLException {
+            this.rs = rs;
+            this.path = path;
+            this.delim = (byte) delim;
+            ResultSetMetaData md = rs.getMetaData();
+            cols = md.getColumnCount();
+            kinds = new int[cols];
+            names = new String[cols];
+            for (int i = 0; i < cols; i++) {
+                names[i] = md.getColumnLabel(i+1);
+                switch (md.getColumnType(i+1)) {
+                case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+                    kinds[i] = LONG; break;
+                case Types.BIGINT:
+                    kinds[i] = md.isSigned(i+1) ? LONG : TEXT; break; // unsigned may not fit
+                case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+                    kinds[i] = DOUBLE; break;
+                case Types.DECIMAL: case Types.NUMERIC:
+                    kinds[i] = DECIMAL; break;
+                default:
+                    kinds[i] = TEXT;
+                }
+            }
+            for (int i = 0; i <= QUEUE_BATCHES; i++) { free.add(new Batch()); }
+        }
+
+        /** Runs the export, returning when all rows are written. */
+        void run() throws SQLException, IOException {
+            Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            write();
+                        } catch (Throwable t) {
+                            writeFailure = t;
+                            full.clear();
+                            free.offer(new Batch()); // unblock the fetcher
+                        }
+                    }
+                }, "export-writer");
+            writer.setDaemon(true);
+            writer.start();
+            boolean queuedEnd = false;
+            try {
+                while (true) {
+                    Batch b = free.take();
+                    if (writeFailure != null) { break; }
+                    fill(b);
+                    full.put(b);
+                    if (b.size == 0) { queuedEnd = true; break; }  // end marker
+                    rows += b.size;
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Export interrupted");
+            } finally {
+                // Without the end marker, as when fill fails, the writer
+                // would wait forever; interrupting it also closes the file.
+                if (!queuedEnd) { writer.interrupt(); }
+                boolean interrupted = false;
+                while (writer.isAlive()) {
+                    try {
+                        writer.join();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) { Thread.currentThread().interrupt(); }
+            }
+            if (writeFailure instanceof IOException) { throw (IOException) writeFailure; }
+            if (writeFailure != null) { throw new IOException("Export failed", writeFailure); }
+        }
+
+        private void fill(Batch b) throws SQLException {
+            int n = 0;
+            while (n < BATCH_ROWS && rs.next()) {
+                for (int i = 0; i < cols; i++) {
+                    switch (kinds[i]) {
+                    case LONG:
+                        b.longs[i][n] = rs.getLong(i+1);
+                        break;
+                    case DOUBLE:
+                        b.doubles[i][n] = rs.getDouble(i+1);
+                        break;
+                    case DECIMAL:
+                        BigDecimal d = rs.getBigDecimal(i+1);
+                        b.texts[i][n] = d == null ? null : d.toPlainString();
+                        break;
+                    default:
+                        b.texts[i][n] = rs.getString(i+1);
+                    }
+                    b.nulls[i][n] = rs.wasNull();
+                }
+                n++;
+            }
+            b.size = n;
+        }
+
+        private void write() throws IOException, InterruptedException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                for (int i = 0; i < cols; i++) {
+                    if (i > 0) { buf = put(ch, buf, delim); }
+                    buf = putText(ch, buf, names[i]);
+                }
+                buf = put(ch, buf, (byte) '\n');
+                while (true) {
+                    Batch b = full.take();
+                    if (b.size == 0) { break; }
+                    for (int r = 0; r < b.size; r++) {
+                        for (int i = 0; i < cols; i++) {
+                            if (i > 0) { buf = put(ch, buf, delim); }
+                            if (b.nulls[i][r]) {
+                                if (delim == '\t') { buf = putAscii(ch, buf, "\\N"); }
+                            } else if (kinds[i] == LONG) {
+                                buf = putLong(ch, buf, b.longs[i][r]);
+                            } else if (kinds[i] == DOUBLE) {
+                                buf = putAscii(ch, buf, Double.toString(b.doubles[i][r]));
+                            } else if (kinds[i] == DECIMAL) {
+                                buf = putAscii(ch, buf, b.texts[i][r]);
+                            } else {
+                                buf = putText(ch, buf, b.texts[i][r]);
+                            }
+                        }
+                        buf = put(ch, buf, (byte) '\n');
+                    }
+                    free.put(b);
+                }
+                drain(ch, buf);
+                bytes = ch.size();
+            }
+        }
+
+        private ByteBuffer drain(FileChannel ch, ByteBuffer buf) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) { ch.write(buf); }
+            buf.clear();
+            return buf;
+        }
+
+        private ByteBuffer put(FileChannel ch, ByteBuffer buf, byte c) throws IOException {
+            if (!buf.hasRemaining()) { drain(ch, buf); }
+            return buf.put(c);
+        }
+
+        private ByteBuffer putAscii(FileChannel ch, ByteBuffer buf, String s) throws IOException {
+            if (buf.remaining() < s.length()) { drain(ch, buf); }
+            for (int i = 0, n = s.length(); i < n; i++) {
+                if (!buf.hasRemaining()) { drain(ch, buf); }
+                buf.put((byte) s.charAt(i));
+            }
+            return buf;
+        }
+
+        private final byte[] digits = new byte[20];
+
+        private ByteBuffer putLong(FileChannel ch, ByteBuffer buf, long v) throws IOException {
+            if (v == Long.MIN_VALUE) { return putAscii(ch, buf, Long.toString(v)); }
+            if (buf.remaining() < 20) { drain(ch, buf); }
+            if (v < 0) { buf.put((byte) '-'); v = -v; }
+            int p = digits.length;
+            do {
+                digits[--p] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            return buf.put(digits, p, digits.length - p);
+        }
+
+        // Writes a string field, quoted or escaped as needed.
+        private ByteBuffer putText(FileChannel ch, ByteBuffer buf, String s) throws IOException {
+            boolean ascii = true, special = false;
+            char other = delim == '\t' ? '\\' : '"';
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) { ascii = false; }
+                else if (c == delim || c == other || c == '\n' || c == '\r') { special = true; }
+            }
+            if (special) {
+                StringBuilder b = new StringBuilder(s.length() + 8);
+                if (delim == '\t') {
+                    for (int i = 0, n = s.length(); i < n; i++) {
+                        char c = s.charAt(i);
+                        if      (c == '\t')  { b.append("\\t"); }
+                        else if (c == '\n')  { b.append("\\n"); }
+                        else if (c == '\r')  { b.append("\\r"); }
+                        else if (c == '\\') { b.append("\\\\"); }
+                        else                 { b.append(c); }
+                    }
+                } else {
+                    b.append('"').append(s.replace("\"", "\"\"")).append('"');
+                }
+                s = b.toString();
+            }
+            if (ascii) { return putAscii(ch, buf, s); }
+            byte[] a = s.getBytes(StandardCharsets.UTF_8);
+            if (buf.remaining() < a.length) {
+                drain(ch, buf);
+                if (a.length > buf.capacity()) {
+                    ByteBuffer big = ByteBuffer.wrap(a);
+                    while (big.hasRemaining()) { ch.write(big); }
+                    return buf;
+                }
+            }
+            return buf.put(a);
+        }
+    }
+
+    /** Inserts rows read from CSV into a table. The first line names the
+      * columns. Rows are sent with PreparedStatement.addBatch, a batch at a
+      * time, and committed every txSize rows. With more than one connection,
+      * the calling thread parses the input and hands batches to a worker per
+      * connection through a bounded queue. Each transaction holds whole
+      * batches, so txSize is rounded up to a multiple of the batch size.
+      * Empty unquoted fields are inserted as NULL. */
+    static class Loader {
+        private final Callable<Connection> connections;
+        private final String table;
+        private final int batchSize, txSize, threads;
+        private final AtomicLong rows = new AtomicLong();
+        private volatile Exception failure = null;
+
+        Loader(Callable<Connection> connections, String table, int batchSize, int txSize, int threads) {
+            if (!table.matches("[A-Za-z0-9_$.]+")) { throw new IllegalArgumentException("Bad table name: " + table); }
+            this.connections = connections;
+            this.table = table;
+            this.batchSize = Math.max(1, batchSize);
+            this.txSize = Math.max(this.batchSize, txSize);
+            this.threads = Math.max(1, threads);
+        }
+
+        /** Loads all rows, and returns the number loaded. */
+        long load(ReadCSV.Streaming in) throws SQLException, IOException {
+            final String[] header = in.next();
+            if (header == null) { return 0; }
+            StringBuilder cols = new StringBuilder(), params = new StringBuilder();
+            for (int i = 0; i < header.length; i++) {
+                if (header[i] == null || !header[i].matches("[A-Za-z0-9_$]+")) {
+                    throw new IllegalArgumentException("Bad column name: " + header[i]);
+                }
+                cols.append(i > 0 ? "," : "").append(header[i]);
+                params.append(i > 0 ? ",?" : "?");
+            }
+            final String insert = "INSERT INTO " + table + " (" + cols + ") VALUES (" + params + ")";
+            final BlockingQueue<List<String[]>> queue = new ArrayBlockingQueue<List<String[]>>(2 * threads);
+            final List<String[]> end = new ArrayList<String[]>();
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(new Runnable() {
+                        public void run() { work(insert, header.length, queue); }
+                    }, "load-" + i);
+                workers[i].start();
+            }
+            try {
+                List<String[]> batch = new ArrayList<String[]>(batchSize);
+                String[] row;
+                while (failure == null && (row = in.next()) != null) {
+                    if (row.length == 1 && row[0] == null) { continue; } // blank line
+                    if (row.length != header.length) {
+                        throw new IOException("Line " + in.lineNumber() + " has " + row.length +
+                                              " fields, expected " + header.length);
+                    }
+                    batch.add(row);
+                    if (batch.size() == batchSize) {
+                        queue.put(batch);
+                        batch = new ArrayList<String[]>(batchSize);
+                    }
+                }
+                if (batch.size() > 0 && failure == null) { queue.put(batch); }
+            } catch (Exception ex) {
+                if (failure == null) { failure = ex; }
+            }
+            try {
+                for (int i = 0; i < threads; i++) { queue.put(end); }
+                for (int i = 0; i < threads; i++) { workers[i].join(); }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Load interrupted");
+            }
+            if (failure instanceof SQLException) { throw (SQLException) failure; }
+            if (failure instanceof IOException) { throw (IOException) failure; }
+            if (failure instanceof RuntimeException) { throw (RuntimeException) failure; }
+            if (failure != null) { throw new SQLException("Load failed", failure); }
+            return rows.get();
+        }
+
+        // Inserts batches from the queue until the end marker, an empty list.
+        // After a failure, keeps taking batches so the reader is not blocked.
+        private void work(String insert, int cols, BlockingQueue<List<String[]>> queue) {
+            Connection c = null;
+            try {
+                c = connections.call();
+                c.setAutoCommit(false);
+                int[] types = new int[cols];
+                try (PreparedStatement ps = c.prepareStatement(insert)) {
+                    try {
+                        ParameterMetaData pmd = ps.getParameterMetaData();
+                        for (int i = 0; i < cols; i++) { types[i] = pmd.getParameterType(i+1); }
+                    } catch (SQLException ex) {
+                        Arrays.fill(types, Types.VARCHAR); // not supported by all drivers
+                    }
+                    long uncommitted = 0;
+                    while (true) {
+                        List<String[]> batch = queue.take();
+                        if (batch.isEmpty()) { break; }
+                        if (failure != null) { continue; }
+                        for (String[] row : batch) {
+                            for (int i = 0; i < cols; i++) {
+                                if (row[i] == null) { ps.setNull(i+1, types[i]); }
+                                else                { ps.setString(i+1, row[i]); }
+                            }
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                        uncommitted += batch.size();
+                        if (uncommitted >= txSize) {
+                            c.commit();
+                            rows.addAndGet(uncommitted);
+                            uncommitted = 0;
+                        }
+                    }
+                    if (failure == null) {
+                        c.commit();
+                        rows.addAndGet(uncommitted);
+                    }
+                }
+            } catch (Exception ex) {
+                if (failure == null) { failure = ex; }
+                try {
+                    if (c != null) { c.rollback(); }
+                } catch (SQLException ignore) { }
+                try {
+                    while (!queue.take().isEmpty())
+                        ; // drain until end marker
+                } catch (InterruptedException ignore) { }
+            } finally {
+                try {
+                    if (c != null) { c.close(); }
+                } catch (SQLException ignore) { }
+            }
+        }
+    }
+
+    /** A fixed number of connections, opened when first needed. */
+    static class ConnectionPool implements Closeable {
+        private final Callable<Connection> source;
+        private final int size;
+        private final BlockingQueue<Connection> idle;
+        private final Semaphore permits;        // one per connection that may be handed out
+
+        ConnectionPool(Callable<Connection> source, int size) {
+            this.source = source;
+            this.size = Math.max(1, size);
+            this.idle = new ArrayBlockingQueue<Connection>(this.size);
+            this.permits = new Semaphore(this.size, true);
+        }
+
+        int size() { return size; }
+
+        /** Returns an idle connection, opening a new one if there is none,
+          * after waiting until fewer than size connections are in use. */
+        Connection acquire() throws Exception {
+            permits.acquire();
+            try {
+                Connection c = idle.poll();
+                return c != null ? c : source.call();
+            } catch (Exception ex) {
+                permits.release();
+                throw ex;
+            }
+        }
+
+        /** Returns a connection to the pool. A closed or broken connection is
+          * dropped, so that a new one is opened in its place. Either way,
+          * a waiting acquire may go on. */
+        void release(Connection c) {
+            boolean ok;
+            try {
+                ok = !c.isClosed() && c.getAutoCommit();
+            } catch (SQLException ex) {
+                ok = false;
+            }
+            if (ok) {
+                idle.add(c);
+            } else {
+                try { c.close(); } catch (SQLException ignore) { }
+            }
+            permits.release();
+        }
+
+        public void close() {
+            Connection c;
+            while ((c = idle.poll()) != null) {
+                try { c.close(); } catch (SQLException ignore) { }
+            }
+        }
+    }
+
+    /** Runs the statements of a SQL script and reports the time of each.
+      * Statements end with a semicolon at the end of a line. Lines starting
+      * with "--" are comments, except that the statements between a line
+      * "-- @parallel" and a line "-- @end" are taken to be independent, and
+      * are run concurrently on connections from the pool. The script waits
+      * for all of them before going on. Other statements run one at a time on
+      * the main connection, so that session settings carry over between
+      * them as in the console. The script stops after the first failure. */
+    static class ScriptRunner {
+        private final Connection main;
+        private final ConnectionPool pool;
+        private final PrintStream out;
+        private int count = 0;
+
+        ScriptRunner(Connection main, ConnectionPool pool, PrintStream out) {
+            this.main = main;
+            this.pool = pool;
+            this.out = out;
+        }
+
+        /** A single statement, or a block of statements to run in parallel. */
+        static class Group {
+            final boolean parallel;
+            final List<String> statements = new ArrayList<String>();
+
+            Group(boolean parallel) { this.parallel = parallel; }
+        }
+
+        /** Splits a script into groups of statements. */
+        static List<Group> parse(BufferedReader r) throws IOException {
+            List<Group> groups = new ArrayList<Group>();
+            Group block = null;
+            StringBuilder b = new StringBuilder();
+            String line;
+            while ((line = r.readLine()) != null) {
+                String t = line.trim();
+                if (t.startsWith("--")) {
+                    String directive = t.substring(2).trim();
+                    if ("@parallel".equals(directive)) {
+                        block = new Group(true);
+                        groups.add(block);
+                    } else if ("@end".equals(directive)) {
+                        block = null;
+                    }
+                    continue;
+                }
+                if (t.length() == 0 && b.length() == 0) { continue; }
+                b.append(line).append('\n');
+                if (t.endsWith(";")) {
+                    String sql = b.toString().trim();
+                    sql = sql.substring(0, sql.length() - 1).trim();
+                    b.setLength(0);
+                    if (sql.length() == 0) { continue; }
+                    if (block != null) {
+                        block.statements.add(sql);
+                    } else {
+                        Group g = new Group(false);
+                        g.statements.add(sql);
+                        groups.add(g);
+                    }
+                }
+            }
+            if (b.toString().trim().length() > 0) {
+                throw new IOException("Script ends without semicolon: " + b.toString().trim());
+            }
+            return groups;
+        }
+
+        /** Runs the groups in order. Returns true if all statements succeeded. */
+        boolean run(List<Group> groups) {
+            long startTime = System.currentTimeMillis();
+            ExecutorService exec = Executors.newFixedThreadPool(pool.size());
+            boolean ok = true;
+            try {
+                for (Group group : groups) {
+                    if (!group.parallel) {
+                        ok = execute(main, ++count, group.statements.get(0));
+                    } else {
+                        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+                        for (final String sql : group.statements) {
+                            final int no = ++count;
+                            results.add(exec.submit(new Callable<Boolean>() {
+                                    public Boolean call() throws Exception {
+                                        Connection c = pool.acquire();
+                                        try {
+                                            return execute(c, no, sql);
+                                        } finally {
+                                            pool.release(c);
+                                        }
+                                    }
+                                }));
+                        }
+                        for (Future<Boolean> f : results) {
+                            try {
+                                ok &= f.get();
+                            } catch (ExecutionException ex) {
+                                report(0, 0, "failed: " + ex.getCause(), "");
+                                ok = false;
+                            }
+                        }
+                    }
+                    if (!ok) { break; }
+                }
+            } catch (InterruptedException ex) {
+                ok = false;
+            } finally {
+                exec.shutdownNow();
+            }
+            out.format("%d statement%s, %s (%.2f seconds)\n", count, count == 1 ? "" : "s",
+                       ok ? "ok" : "stopped after failure", (System.currentTimeMillis() - startTime) / 1000.0);
+            out.flush();
+            return ok;
+        }
+
+        private boolean execute(Connection c, int no, String sql) {
+            long startTime = System.currentTimeMillis();
+            try (Statement st = c.createStatement()) {
+                String what;
+                if (st.execute(sql)) {
+                    long rows = 0;
+                    try (ResultSet rs = st.getResultSet()) {
+                        while (rs.next()) { rows++; }
+                    }
+                    what = rows + " row" + (rows == 1 ? "" : "s");
+                } else {
+                    int ct = st.getUpdateCount();
+                    what = ct >= 0 ? ct + " row" + (ct == 1 ? "" : "s") + " affected" : "ok";
+                }
+                report(no, System.currentTimeMillis() - startTime, what, sql);
+                return true;
+            } catch (SQLException ex) {
+                report(no, System.currentTimeMillis() - startTime, "failed: " + ex.getMessage(), sql);
+                return false;
+            }
+        }
+
+        private synchronized void report(int no, long millis, String what, String sql) {
+            String s = sql.replaceAll("\\s+", " ");
+            if (s.length() > 60) { s = s.substring(0, 57) + "..."; }
+            out.format("[%d] %8.2f s  %s  %s\n", no, millis / 1000.0, what, s);
+            out.flush();
         }
-        return batch;
     }
 }
@@ -1,24 +1,200 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Program that prints the smallest prime >= the given number, or, if the
+ * number is negative, the largest prime <= its absolute value. Given two
+ * numbers lo and hi, prints all primes p with lo <= p < hi instead, one per
+ * line.
+ *
+ * With -b [-q query] [file], numbers are read one per line from the file
+ * or standard input, and one answer is written per line, in the same order. The query is next
+ * (as for a single number), prev (largest prime <= n) or is (true or
+ * false), chosen with -q.
+ */
 public class NextPrime {
-    public static void main(String[] args) {
+    /** The largest prime that fits in a long. */
+    static final long MAX_PRIME = 9223372036854775783L;
+
+    private static final int[] SMALL_PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47 };
+    private static final long SMALL_LIMIT = 53 * 53;  // no smaller composite escapes trial division
+
+    // Witnesses that make Miller-Rabin deterministic for all n < 2^64
+    // (Jim Sinclair, 2011).
+    private static final long[] WITNESSES = { 2, 325, 9375, 28178, 450775, 9780504, 1795265022 };
+
+    private static final int CHUNK_LINES = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 1 && args[0].equals("-b")) {
+            String query = "next", file = null;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("-q") && i + 1 < args.length) query = args[++i];
+                else file = args[i];
+            }
+            if (!query.equals("next") && !query.equals("prev") && !query.equals("is")) {
+                System.err.println("Unknown query: " + query + " (is, next or prev)");
+                System.exit(64);        // EX_USAGE
+            }
+            InputStream in = file == null ? System.in : new FileInputStream(file);
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16)) {
+                batch(r, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), 1 << 16), query);
+            }
+            return;
+        }
+        if (args.length >= 2) {
+            printRange(Long.parseLong(args[0]), Long.parseLong(args[1]));
+            return;
+        }
         long x = Long.parseLong(args[0]);
-        int d;
-        if (x < 0) {
-            d = -2;
-            x = -x - (1 ^ (x & 1));
-        } else {
-            d = 2;
-            x += 1 ^ (x & 1);
+        try {
+            // -Long.MIN_VALUE is 2^63, which is not prime.
+            System.out.println(x >= 0 ? nextPrime(x) : prevPrime(x == Long.MIN_VALUE ? Long.MAX_VALUE : -x));
+        } catch (ArithmeticException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
         }
+    }
+
+    /** Answers the query for each line of the reader, writing the answers
+      * in order. Chunks of lines are answered in parallel. */
+    static void batch(BufferedReader in, Writer out, String query) throws IOException {
+        List<String> lines = new ArrayList<String>(CHUNK_LINES);
+        String line;
+        do {
+            line = in.readLine();
+            if (line != null) lines.add(line);
+            if (lines.size() == CHUNK_LINES || line == null && lines.size() > 0) {
+                String[] chunk = lines.toArray(new String[lines.size()]);
+                IntStream.range(0, chunk.length).parallel().forEach(i -> chunk[i] = answer(chunk[i], query));
+                for (String a : chunk) {
+                    out.write(a);
+                    out.write('\n');
+                }
+                lines.clear();
+            }
+        } while (line != null);
+        out.flush();
+    }
+
+    // Answers one query, or returns an error text in place of the answer.
+    private static String answer(String line, String query) {
+        String s = line.trim();
+        if (s.isEmpty()) return "";
+        try {
+            long x = Long.parseLong(s);
+            switch (query) {
+            case "is":   return Boolean.toString(isPrime(x));
+            case "prev": return Long.toString(prevPrime(x));
+            default:     return Long.toString(x >= 0 ? nextPrime(x) : prevPrime(x == Long.MIN_VALUE ? Long.MAX_VALUE : -x));
+            }
+        } catch (NumberFormatException e) {
+            return "error: not a number: " + s;
+        } catch (ArithmeticException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    /** Returns the smallest prime >= x. */
+    static long nextPrime(long x) {
+        if (x <= 2) return 2;
+        if (x > MAX_PRIME) throw new ArithmeticException("No prime >= " + x + " fits in a long");
+        x |= 1;
+        while (!isPrime(x)) x += 2;
+        return x;
+    }
 
-        while (!isPrime(x)) x += d;
-        System.out.println(x);
+    /** Returns the largest prime <= x. */
+    static long prevPrime(long x) {
+        if (x < 2) throw new ArithmeticException("No prime <= " + x);
+        if (x == 2) return 2;
+        x -= 1 ^ (x & 1);
+        while (!isPrime(x)) x -= 2;
+        return x;
     }
 
+    /** Deterministic primality test for the whole range of long: trial
+      * division by small primes, then Miller-Rabin with a fixed set of
+      * witnesses, using Montgomery multiplication modulo n. */
     static boolean isPrime(long n) {
-        if (n % 2 == 0) return false;
-        for (long i = 3; i*i <= n; i+=2) {
-            if (n % i == 0) return false;
+        if (n < 2) return false;
+        for (int p : SMALL_PRIMES) {
+            if (n % p == 0) return n == p;
         }
-        return true;
+        if (n < SMALL_LIMIT) return true;
+        return new Montgomery(n).millerRabin();
+    }
+
+    /** Arithmetic modulo an odd n < 2^63, on numbers in Montgomery form
+      * a*2^64 mod n, where multiplication needs no division. */
+    static final class Montgomery {
+        private final long n, nInv, one, r2;
+
+        Montgomery(long n) {
+            this.n = n;
+            long inv = n;                            // right in 3 bits, as n*n = 1 mod 8
+            for (int i = 0; i < 5; i++) inv *= 2 - n * inv;  // Newton, doubling the bits
+            nInv = inv;
+            one = Long.remainderUnsigned(-n, n);      // 2^64 mod n
+            long r = one;
+            for (int i = 0; i < 64; i++) {            // 2^128 mod n
+                r <<= 1;
+                if (Long.compareUnsigned(r, n) >= 0) r -= n;
+            }
+            r2 = r;
+        }
+
+        // Returns hi:lo / 2^64 mod n, for hi < n.
+        private long reduce(long hi, long lo) {
+            long m = lo * nInv;
+            // Unsigned high word of m*n; n is positive, so only m's sign needs correcting.
+            long mnHi = Math.multiplyHigh(m, n) + ((m >> 63) & n);
+            long t = hi - mnHi;
+            return t < 0 ? t + n : t;
+        }
+
+        /** Returns a*b/2^64 mod n, for a, b < n. */
+        long mul(long a, long b) {
+            return reduce(Math.multiplyHigh(a, b), a * b);
+        }
+
+        long toMontgomery(long a) { return mul(a % n, r2); }
+
+        long pow(long a, long e) {
+            long r = one;
+            for (; e > 0; e >>>= 1) {
+                if ((e & 1) != 0) r = mul(r, a);
+                a = mul(a, a);
+            }
+            return r;
+        }
+
+        boolean millerRabin() {
+            long d = n - 1;
+            int s = Long.numberOfTrailingZeros(d);
+            d >>>= s;
+            long minusOne = n - one;
+        witness:
+            for (long w : WITNESSES) {
+                if (w % n == 0) continue;
+                long x = pow(toMontgomery(w), d);
+                if (x == one || x == minusOne) continue;
+                for (int i = 1; i < s; i++) {
+                    x = mul(x, x);
+                    if (x == minusOne) continue witness;
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    static void printRange(long lo, long hi) {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        PrimeSieve.stream(lo, hi).parallel().forEachOrdered(p -> out.println(p));
+        out.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+import java.io.*;
+
+/**
+ * Writes numbers as decimal ASCII text through a large buffer, without
+ * creating strings. For programs that print long series of numbers.
+ */
+public class NumberWriter implements Closeable, Flushable {
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos = 0;
+
+    public NumberWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buf = new byte[Math.max(bufferSize, 64)];
+    }
+
+    public NumberWriter(OutputStream out) { this(out, 1 << 16); }
+
+    /** Writes v in decimal, followed by the separator. */
+    public void print(long v, char separator) throws IOException {
+        if (pos > buf.length - 21) { drain(); }  // room for sign, 19 digits, separator
+        if (v < 0) {
+            buf[pos++] = '-';
+            if (v == Long.MIN_VALUE) {
+                byte[] b = "9223372036854775808".getBytes();
+                System.arraycopy(b, 0, buf, pos, b.length);
+                pos += b.length;
+                buf[pos++] = (byte) separator;
+                return;
+            }
+            v = -v;
+        }
+        int end = pos + digits(v);
+        int i = end;
+        do {
+            buf[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        buf[end] = (byte) separator;
+        pos = end + 1;
+    }
+
+    public void write(char c) throws IOException {
+        if (pos == buf.length) { drain(); }
+        buf[pos++] = (byte) c;
+    }
+
+    private static int digits(long v) {
+        int n = 1;
+        for (long p = 10; n < 19 && v >= p; p *= 10) { n++; }
+        return n;
+    }
+
+    private void drain() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.stream.IntStream;
+
+/**
+ * Counts primes without listing them, and finds the n:th prime.
+ *
+ * pi(x) uses Lucy Hedgehog's method, a simpler relative of Meissel-Lehmer,
+ * in O(x^(3/4)) time and O(x^(1/2)) memory. S(v) starts as the number of
+ * integers in [2, v], for the O(sqrt x) distinct values v = x / i. For each
+ * prime p <= sqrt x in turn, the numbers whose smallest prime factor is p
+ * are removed from the counts:
+ * <pre>
+ *     S(v) -= S(v / p) - S(p - 1),   for all v >= p^2
+ * </pre>
+ * after which S(x) = pi(x). Each update reads S at a smaller v, which must
+ * not yet be updated for the same p. The values are therefore updated in
+ * bands of v that read only from bands already finished, and the updates
+ * within a band run in parallel.
+ *
+ * The n:th prime is found by inverting the logarithmic integral, counting
+ * the primes up to that estimate, and sieving from there to the answer.
+ *
+ * As a program, prints pi(x), or with -n, the n:th prime.
+ */
+public class PrimeCount {
+    private static final int PARALLEL_MIN = 1 << 14;  // smaller bands are not split
+
+    /** Returns the number of primes <= x. */
+    public static long pi(long x) {
+        if (x < 2) { return 0; }
+        int root = (int) isqrt(x);
+        // small[v] = S(v) for v <= root, large[i] = S(x / i) for i <= root.
+        long[] small = new long[root + 1], large = new long[root + 1];
+        for (int v = 1; v <= root; v++) {
+            small[v] = v - 1;
+            large[v] = x / v - 1;
+        }
+        for (int p = 2; p <= root; p++) {
+            if (small[p] == small[p - 1]) { continue; }    // not prime
+            long sp = small[p - 1];
+            long p2 = (long) p * p;
+            int iMax = (int) Math.min(root, x / p2);
+            // large[i] reads large[i * p] when i * p <= root, so bands of
+            // smaller i go first, each ending before the first i it reads.
+            int lo = 0, hi;
+            while (lo < iMax) {
+                hi = (int) Math.min(iMax, (lo + 1L) * p - 1);
+                updateLarge(x, small, large, p, sp, lo + 1, hi + 1);
+                lo = hi;
+            }
+            // small[v] reads small[v / p], so bands of larger v go first.
+            hi = root;
+            while (hi >= p2) {
+                lo = (int) Math.max(p2 - 1, hi / p);
+                updateSmall(small, p, sp, lo + 1, hi + 1);
+                hi = lo;
+            }
+        }
+        return large[1];
+    }
+
+    private static void updateLarge(long x, long[] small, long[] large, int p, long sp, int from, int to) {
+        if (to - from < PARALLEL_MIN) {
+            updateLargeSeq(x, small, large, p, sp, from, to);
+            return;
+        }
+        int chunks = (to - from + PARALLEL_MIN - 1) / PARALLEL_MIN;
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+                int a = from + c * PARALLEL_MIN;
+                updateLargeSeq(x, small, large, p, sp, a, Math.min(to, a + PARALLEL_MIN));
+            });
+    }
+
+    private static void updateLargeSeq(long x, long[] small, long[] large, int p, long sp, int from, int to) {
+        int root = small.length - 1;
+        int split = Math.min(to, root / p + 1);     // i * p <= root below this
+        for (int i = from; i < split; i++) {
+            large[i] -= large[i * p] - sp;
+        }
+        for (int i = Math.max(from, split); i < to; i++) {
+            large[i] -= small[(int) (x / ((long) i * p))] - sp;
+        }
+    }
+
+    private static void updateSmall(long[] small, int p, long sp, int from, int to) {
+        if (to - from < PARALLEL_MIN) {
+            for (int v = to - 1; v >= from; v--) { small[v] -= small[v / p] - sp; }
+            return;
+        }
+        int chunks = (to - from + PARALLEL_MIN - 1) / PARALLEL_MIN;
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+                int a = from + c * PARALLEL_MIN, b = Math.min(to, a + PARALLEL_MIN);
+                for (int v = a; v < b; v++) { small[v] -= small[v / p] - sp; }
+            });
+    }
+
+    /** Returns the n:th prime, counting 2 as the first. */
+    public static long nthPrime(long n) {
+        if (n < 1) { throw new IllegalArgumentException("n must be positive: " + n); }
+        if (n <= 5) { return new long[] { 2, 3, 5, 7, 11 }[(int) n - 1]; }
+        long x = Math.max(12, (long) inverseLi(n));
+        long c = pi(x);
+        final long window = 1 << 24;
+        if (c < n) {
+            // The answer is above x.
+            for (long lo = x + 1; ; lo += window) {
+                long k = PrimeSieve.count(lo, lo + window);
+                if (c + k >= n) { return PrimeSieve.primes(lo, lo + window)[(int) (n - c - 1)]; }
+                c += k;
+            }
+        } else {
+            // The answer is at most x.
+            for (long hi = x + 1; ; hi -= window) {
+                long lo = Math.max(0, hi - window);
+                long k = PrimeSieve.count(lo, hi);
+                if (c - k < n) { return PrimeSieve.primes(lo, hi)[(int) (n - (c - k) - 1)]; }
+                c -= k;
+            }
+        }
+    }
+
+    /** Returns the x with li(x) = n, by Newton's method. */
+    static double inverseLi(double n) {
+        double x = n * Math.log(n);
+        for (int i = 0; i < 100; i++) {
+            double step = (li(x) - n) * Math.log(x);
+            x -= step;
+            if (Math.abs(step) < 0.5) { break; }
+        }
+        return x;
+    }
+
+    /** Logarithmic integral, by Ramanujan's series. */
+    static double li(double x) {
+        double gamma = 0.5772156649015329;
+        double lnx = Math.log(x);
+        double sum = 0, term = 1, inner = 0;
+        for (int n = 1; n < 200; n++) {
+            term *= lnx / n;                         // (ln x)^n / n!
+            if (((n - 1) & 1) == 0) { inner += 1.0 / (2 * ((n - 1) / 2) + 1); }
+            double t = (n % 2 == 1 ? 1 : -1) * term / Math.pow(2, n - 1) * inner;
+            sum += t;
+            if (Math.abs(t) < 1e-17 * Math.abs(sum)) { break; }
+        }
+        return gamma + Math.log(lnx) + Math.sqrt(x) * sum;
+    }
+
+    static long isqrt(long x) {
+        long r = (long) Math.sqrt((double) x);
+        while (r * r > x) { r--; }
+        while ((r + 1) * (r + 1) <= x) { r++; }
+        return r;
+    }
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        if (args.length == 2 && "-n".equals(args[0])) {
+            System.out.println(nthPrime(Long.parseLong(args[1])));
+        } else if (args.length == 1) {
+            System.out.println(pi(Long.parseLong(args[0])));
+        } else {
+            System.err.println("Arguments: x | -n n");
+            System.exit(64);        // EX_USAGE
+        }
+        System.err.printf("%.3f seconds%n", (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,210 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.LongStream;
+
+/**
+ * Segmented sieve of Eratosthenes for finding the primes in a range. Only
+ * odd numbers are represented, one bit each, in segments small enough to
+ * stay in the processor cache while they are sieved. Segments are
+ * independent of each other, and are sieved in parallel on a fork-join
+ * pool.
+ *
+ * The primes up to the square root of the end of a range are needed to
+ * sieve it. They are computed once and kept, so the first range ending
+ * near 2^63 takes several seconds and about 800 megabytes.
+ */
+public class PrimeSieve {
+    /** Odd numbers per segment: 32 KB of bits, which cover 512K numbers. */
+    static final int SEGMENT_BITS = 1 << 18;
+    static final long SEGMENT_SPAN = 2L * SEGMENT_BITS;
+
+    /** Largest end of a range that can be sieved. */
+    public static final long MAX_HI = Long.MAX_VALUE - SEGMENT_SPAN;
+
+    // Odd primes up to baseLimit, as unsigned ints.
+    private static int[] base = new int[0];
+    private static long baseLimit = 2;
+    private static final long MAX_BASE = 3037000499L;  // sqrt(Long.MAX_VALUE)
+
+    /** Returns the primes p with lo <= p < hi, in increasing order. */
+    public static long[] primes(long lo, long hi) {
+        check(lo, hi);
+        if (hi <= lo) { return new long[0]; }
+        int[] b = basePrimes(hi);
+        long first = segmentOf(lo), last = segmentOf(hi - 1);
+        return ForkJoinPool.commonPool().invoke(new SieveTask(lo, hi, first, last + 1, b));
+    }
+
+    /** Returns the primes p with lo <= p < hi as an ordered stream, which is
+      * sieved in parallel if the stream is parallel. Segments are sieved as
+      * the stream is consumed, so long ranges do not need to fit in memory. */
+    public static LongStream stream(long lo, long hi) {
+        check(lo, hi);
+        if (hi <= lo) { return LongStream.empty(); }
+        int[] b = basePrimes(hi);
+        return LongStream.rangeClosed(segmentOf(lo), segmentOf(hi - 1))
+            .flatMap(seg -> LongStream.of(segmentPrimes(seg, lo, hi, b)));
+    }
+
+    /** Returns the number of primes p with lo <= p < hi, sieving in
+      * parallel without keeping the primes. */
+    public static long count(long lo, long hi) {
+        check(lo, hi);
+        if (hi <= lo) { return 0; }
+        int[] b = basePrimes(hi);
+        return LongStream.rangeClosed(segmentOf(lo), segmentOf(hi - 1)).parallel()
+            .map(seg -> segmentCount(seg, lo, hi, b)).sum();
+    }
+
+    /** Returns the smallest prime >= x, sieving a window at a time. */
+    public static long next(long x) {
+        if (x <= 2) { return 2; }
+        for (long seg = segmentOf(x); seg * SEGMENT_SPAN < MAX_HI; seg++) {
+            long hi = Math.min(MAX_HI, (seg + 1) * SEGMENT_SPAN);
+            long[] p = segmentPrimes(seg, x, hi, basePrimes(hi));
+            if (p.length > 0) { return p[0]; }
+        }
+        throw new ArithmeticException("no prime below " + MAX_HI + " from " + x);
+    }
+
+    private static void check(long lo, long hi) {
+        if (lo < 0 || hi > MAX_HI) {
+            throw new IllegalArgumentException("range [" + lo + ", " + hi + ") outside [0, " + MAX_HI + ")");
+        }
+    }
+
+    private static long segmentOf(long n) { return n / SEGMENT_SPAN; }
+
+    // Splits a range of segments in halves until single segments are left.
+    private static class SieveTask extends RecursiveTask<long[]> {
+        private final long lo, hi, firstSeg, endSeg;
+        private final int[] base;
+
+        SieveTask(long lo, long hi, long firstSeg, long endSeg, int[] base) {
+            this.lo = lo; this.hi = hi;
+            this.firstSeg = firstSeg; this.endSeg = endSeg;
+            this.base = base;
+        }
+
+        protected long[] compute() {
+            if (endSeg - firstSeg == 1) { return segmentPrimes(firstSeg, lo, hi, base); }
+            long mid = firstSeg + (endSeg - firstSeg) / 2;
+            SieveTask right = new SieveTask(lo, hi, mid, endSeg, base);
+            right.fork();
+            long[] a = new SieveTask(lo, hi, firstSeg, mid, base).compute();
+            long[] b = right.join();
+            long[] r = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, r, a.length, b.length);
+            return r;
+        }
+    }
+
+    /** Returns the primes in segment seg that are within [lo, hi). */
+    static long[] segmentPrimes(long seg, long lo, long hi, int[] base) {
+        long segLo = seg * SEGMENT_SPAN;
+        long[] bits = sieve(segLo, base);
+        long from = Math.max(lo, segLo), to = Math.min(hi, segLo + SEGMENT_SPAN);
+        long[] out = new long[estimate(from, to)];
+        int n = 0;
+        if (from <= 2 && to > 2) { out[n++] = 2; }
+        // Bit k stands for segLo + 2k + 1.
+        int k = (int) (Math.max(0, from - segLo) / 2);
+        int end = (int) ((to - segLo) / 2);
+        for (int w = k >>> 6; w <= (end - 1) >>> 6 && end > k; w++) {
+            long word = ~bits[w];
+            if (w == k >>> 6) { word &= -1L << (k & 63); }
+            if (w == (end - 1) >>> 6 && (end & 63) != 0) { word &= (1L << (end & 63)) - 1; }
+            while (word != 0) {
+                long p = segLo + 2 * (64L * w + Long.numberOfTrailingZeros(word)) + 1;
+                if (n == out.length) { out = Arrays.copyOf(out, 2 * n); }
+                out[n++] = p;
+                word &= word - 1;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /** Returns the number of primes in segment seg that are within [lo, hi). */
+    static int segmentCount(long seg, long lo, long hi, int[] base) {
+        long segLo = seg * SEGMENT_SPAN;
+        long[] bits = sieve(segLo, base);
+        long from = Math.max(lo, segLo), to = Math.min(hi, segLo + SEGMENT_SPAN);
+        int n = from <= 2 && to > 2 ? 1 : 0;
+        int k = (int) (Math.max(0, from - segLo) / 2);
+        int end = (int) ((to - segLo) / 2);
+        for (int w = k >>> 6; w <= (end - 1) >>> 6 && end > k; w++) {
+            long word = ~bits[w];
+            if (w == k >>> 6) { word &= -1L << (k & 63); }
+            if (w == (end - 1) >>> 6 && (end & 63) != 0) { word &= (1L << (end & 63)) - 1; }
+            n += Long.bitCount(word);
+        }
+        return n;
+    }
+
+    // A little more than the number of primes expected in [from, to).
+    private static int estimate(long from, long to) {
+        if (from < 100) { return (int) (1.26 * to / Math.log(Math.max(to, 3))) + 16; }
+        return (int) ((to - from) / (Math.log(from) - 1.1)) + 16;
+    }
+
+    /** Sieves the odd numbers of the segment starting at the even number
+      * segLo. Returns bits set for composites, and for 1. */
+    static long[] sieve(long segLo, int[] base) {
+        long[] bits = new long[SEGMENT_BITS / 64];
+        long segHi = segLo + SEGMENT_SPAN;
+        if (segLo == 0) { bits[0] = 1; }            // 1 is not prime
+        for (int i = 0; i < base.length; i++) {
+            long p = base[i] & 0xffffffffL;
+            long pp = p * p;
+            if (pp >= segHi) { break; }
+            long off;                       // of the first odd multiple to cross off
+            if (pp >= segLo) {
+                off = pp - segLo;
+            } else {
+                off = p - segLo % p;        // segLo + off could overflow
+                if ((off & 1) == 0) { off += p; }
+            }
+            for (long j = off >>> 1; j < SEGMENT_BITS; j += p) {
+                bits[(int) (j >>> 6)] |= 1L << j;
+            }
+        }
+        return bits;
+    }
+
+    /** Returns the odd primes up to the square root of hi, as unsigned
+      * ints, computing more of them if necessary. */
+    static synchronized int[] basePrimes(long hi) {
+        long limit = Math.min((long) Math.sqrt((double) hi) + 1, MAX_BASE);
+        while (limit * limit > hi && limit > 0) { limit--; }
+        if (limit > baseLimit) { computeBase(Math.max(limit, 2 * baseLimit)); }
+        return base;
+    }
+
+    // Simple sieve of the odd numbers up to limit.
+    private static void computeBase(long limit) {
+        limit = Math.min(limit, MAX_BASE);
+        int bitCount = (int) ((limit - 1) / 2);  // bit i stands for 2i + 3
+        long[] bits = new long[(bitCount >>> 6) + 1];
+        for (long i = 0; (2 * i + 3) * (2 * i + 3) <= limit; i++) {
+            if ((bits[(int) (i >>> 6)] & 1L << i) == 0) {
+                long p = 2 * i + 3;
+                for (long j = (p * p - 3) / 2; j < bitCount; j += p) {
+                    bits[(int) (j >>> 6)] |= 1L << j;
+                }
+            }
+        }
+        if ((bitCount & 63) != 0) { bits[bitCount >>> 6] |= -1L << bitCount; }
+        int count = 0;
+        for (long w : bits) { count += Long.bitCount(~w); }
+        int[] b = new int[count];
+        int n = 0;
+        for (int w = 0; w < bits.length; w++) {
+            for (long word = ~bits[w]; word != 0; word &= word - 1) {
+                b[n++] = (int) (2 * (64L * w + Long.numberOfTrailingZeros(word)) + 3);
+            }
+        }
+        base = b;
+        baseLimit = limit;
+    }
+}
@@ -1,35 +1,100 @@
+import java.util.Arrays;
 import java.util.Random;
 
 /**
- * Program to generate a sequence of roughly doubling pseudo-random
- * prime numbers, not too close to powers of two. Useful for hash
- * table sizes.
+ * Roughly doubling pseudo-random prime numbers, not too close to powers of
+ * two, for hash table sizes. The table is fixed, generated with seed
+ * {@link #SEED}, so that table sizes are the same from run to run.
+ *
+ * For each prime there is a multiplier that computes h mod p with two
+ * multiplications instead of a division (Lemire, Kaser and Kurz, "Faster
+ * Remainder by Direct Computation", 2019):
+ * <pre>
+ *     int i = Primes.nextIndex(n);
+ *     int p = Primes.prime(i);
+ *     long m = Primes.multiplier(i);
+ *     ...
+ *     int slot = Primes.fastmod(h, m, p);   // Integer.remainderUnsigned(h, p)
+ * </pre>
+ *
+ * As a program, prints the sequence for a seed, random if none is given.
  */
 public class Primes {
+    /** Seed that generated the table. */
+    public static final long SEED = 1;
+
+    private static final int[] PRIMES = {
+        3, 7, 13, 29, 59, 97, 163, 449, 907, 1297, 3299, 5791, 11689, 26669, 50111,
+        110933, 174989, 403499, 836047, 1609501, 2781377, 5447119, 12593461, 22971643,
+        56572657, 98280551, 185162501, 439197653, 882763477, 1555606673
+    };
+
+    private static final long[] MULTIPLIERS = new long[PRIMES.length];
+    static {
+        for (int i = 0; i < PRIMES.length; i++) { MULTIPLIERS[i] = multiplierFor(PRIMES[i]); }
+    }
+
     static class MyRandom extends Random {
+        MyRandom() { }
+        MyRandom(long seed) { super(seed); }
         public int next(int bits) { return super.next(bits); }
     }
 
-    public static void main(String[] args) {
-        MyRandom random = new MyRandom();
-        
+    /** Number of primes in the table. */
+    public static int size() { return PRIMES.length; }
+
+    /** Returns the i:th prime of the table, in increasing order. */
+    public static int prime(int i) { return PRIMES[i]; }
+
+    /** Returns the fastmod multiplier of the i:th prime. */
+    public static long multiplier(int i) { return MULTIPLIERS[i]; }
+
+    /** Returns the index of the smallest prime in the table that is >= n.
+      * @throws IllegalArgumentException if n is larger than all of them. */
+    public static int nextIndex(int n) {
+        int i = Arrays.binarySearch(PRIMES, n);
+        if (i < 0) { i = -i - 1; }
+        if (i == PRIMES.length) {
+            throw new IllegalArgumentException("No table size >= " + n);
+        }
+        return i;
+    }
+
+    /** Returns the smallest prime in the table that is >= n. */
+    public static int nextCapacity(int n) { return PRIMES[nextIndex(n)]; }
+
+    /** Returns the fastmod multiplier for any d > 0: ceil(2^64 / d). */
+    public static long multiplierFor(int d) {
+        return Long.divideUnsigned(-1L, d) + 1;
+    }
+
+    /** Returns h mod d, with h taken as unsigned, given m = multiplierFor(d). */
+    public static int fastmod(int h, long m, int d) {
+        long low = m * (h & 0xffffffffL);
+        // Unsigned high 64 bits of low * d; d is positive.
+        return (int) (Math.multiplyHigh(low, d) + ((low >> 63) & d));
+    }
+
+    /** Generates a sequence of primes, from 3 to about 1.5 * 2^30. */
+    static int[] generate(MyRandom random) {
+        int[] primes = new int[30];
         for (int i = 1; i < 31; i++) {
             int j = Math.max(0, i-2);
             int r = (random.next(j) & (1<<j)-1) * (random.next(1) * 2 - 1);
             //System.out.print("{" + (1<<i) + "," + (1<<i-1) + "," + (1<<j) + "}");
             int n = (1 << i) + (1 << i-1) + r | 1;
-            while (!isPrime(n)) n += 2;
+            n = (int) PrimeSieve.next(n);
             //System.out.print("[" + Integer.toString(n, 2) + "]");
-            System.out.print(n + ", ");
+            primes[i-1] = n;
         }
+        return primes;
     }
 
-    static boolean isPrime(int n) {
-        if (n % 2 == 0) return false;
-        int lim = (int) Math.sqrt(n) + 1;
-        for (int i = 3; i <= lim; i+=2) {
-            if (n % i == 0) return false;
+    public static void main(String[] args) {
+        MyRandom random = args.length > 0 ? new MyRandom(Long.parseLong(args[0])) : new MyRandom();
+        for (int n : generate(random)) {
+            System.out.print(n + ", ");
         }
-        return true;
+        System.out.println();
     }
-}
\ No newline at end of file
+}
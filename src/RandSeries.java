@@ -1,17 +1,121 @@
-import java.util.Random;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
 
 /**
  * Program that produces a series of random numbers.
+ *
+ * Arguments: [-s seed] [-t threads] [-b] n lo hi, for n numbers uniformly
+ * distributed between lo and hi, inclusive, which may be any longs. The
+ * numbers are generated in chunks on several threads, each chunk by its own
+ * generator split from one seeded generator in chunk order, so the output
+ * for a seed is the same whatever the number of threads. Bounded values
+ * are drawn with Lemire's multiply-and-reject method, which is unbiased.
+ * Text output is the numbers followed by spaces, on one line; with -b,
+ * they are written as 8-byte little-endian binary instead.
  */
 public class RandSeries {
-    public static void main(String[] args) {
-        int n = Integer.parseInt(args[0]);
-        int lo = Integer.parseInt(args[1]);
-        int hi = Integer.parseInt(args[2]);
-        
-        Random random = new Random();
-        
-        for (int i = 0; i < n; i++) System.out.print(lo + (random.nextInt() & Integer.MAX_VALUE) % (hi-lo+1) + " ");
-        System.out.println();
-    }
-}
\ No newline at end of file
+    static final int CHUNK = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        long seed = new SplittableRandom().nextLong();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean binary = false;
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("-") && args[a].length() == 2 && !Character.isDigit(args[a].charAt(1)); a++) {
+            if ("-s".equals(args[a]))      { seed = Long.parseLong(args[++a]); }
+            else if ("-t".equals(args[a])) { threads = Integer.parseInt(args[++a]); }
+            else if ("-b".equals(args[a])) { binary = true; }
+            else { usage(); }
+        }
+        if (args.length - a != 3) { usage(); }
+        long n = Long.parseLong(args[a]);
+        long lo = Long.parseLong(args[a+1]);
+        long hi = Long.parseLong(args[a+2]);
+        if (hi < lo) { usage(); }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        generate(n, lo, hi, seed, threads, binary, out);
+        if (!binary) { out.write('\n'); }
+        out.flush();
+    }
+
+    private static void usage() {
+        System.err.println("Arguments: [-s seed] [-t threads] [-b] n lo hi");
+        System.exit(64);        // EX_USAGE
+    }
+
+    /** Writes n random numbers in [lo, hi] to out, generating chunks in
+      * parallel on the given number of threads and writing them in order. */
+    static void generate(long n, long lo, long hi, long seed, int threads, boolean binary, OutputStream out)
+        throws IOException, InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            SplittableRandom root = new SplittableRandom(seed);
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+            for (long start = 0; start < n || !pending.isEmpty(); ) {
+                while (start < n && pending.size() < 2 * threads) {
+                    final SplittableRandom r = root.split();
+                    final int size = (int) Math.min(CHUNK, n - start);
+                    pending.add(pool.submit(new Callable<byte[]>() {
+                            public byte[] call() throws IOException {
+                                return binary ? binaryChunk(r, size, lo, hi) : textChunk(r, size, lo, hi);
+                            }
+                        }));
+                    start += size;
+                }
+                out.write(pending.remove().get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static byte[] binaryChunk(SplittableRandom r, int size, long lo, long hi) {
+        ByteBuffer b = ByteBuffer.allocate(8 * size).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < size; i++) { b.putLong(next(r, lo, hi)); }
+        return b.array();
+    }
+
+    static byte[] textChunk(SplittableRandom r, int size, long lo, long hi) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size * 8);
+        NumberWriter w = new NumberWriter(bytes);
+        for (int i = 0; i < size; i++) {
+            w.print(next(r, lo, hi), ' ');
+        }
+        w.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Returns a uniformly distributed number in [lo, hi]. */
+    static long next(SplittableRandom r, long lo, long hi) {
+        long range = hi - lo + 1;           // as unsigned; 0 for the full range
+        if (range == 0) { return r.nextLong(); }
+        return lo + bounded(r, range);
+    }
+
+    /** Returns a uniformly distributed number in [0, range), for range taken
+      * as unsigned: the high word of a random 64-bit number times range,
+      * rejecting the few low words that would make some results more likely
+      * than others (Lemire, "Fast Random Integer Generation in an Interval",
+      * 2019). */
+    static long bounded(SplittableRandom r, long range) {
+        long x = r.nextLong();
+        long low = x * range;
+        if (Long.compareUnsigned(low, range) < 0) {
+            long threshold = Long.remainderUnsigned(-range, range);   // 2^64 mod range
+            while (Long.compareUnsigned(low, threshold) < 0) {
+                x = r.nextLong();
+                low = x * range;
+            }
+        }
+        return unsignedMultiplyHigh(x, range);
+    }
+
+    static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+}
@@ -0,0 +1,133 @@
+package dk.itu.jesl.multic;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs many Score jobs in one JVM, so they share its startup and warmed-up
+ * code. The manifest has a job per line: the output file followed by the
+ * arguments to Score, separated by white space. Blank lines and lines
+ * starting with # are ignored. The jobs run on a work-stealing pool of a
+ * bounded number of threads, which with -F also parse the student files of
+ * a job in parallel. A job that fails does not affect the others; its
+ * output file is removed. A summary of the jobs and their wall times is
+ * written to standard output, followed by what the jobs wrote to standard
+ * error, such as the timing of -t.
+ */
+public class Batch {
+    private static String HELP_MSG =
+        "Arguments: [-j threads] manifest_file\n" +
+        "Each line of the manifest is: output_file [Score options] correct_answers_file given_answers_file...";
+
+    /** A line of the manifest, and how running it went. */
+    public static class Job extends RecursiveAction {
+        final int line;
+        final String output;
+        final String[] args;
+        int status = -1;
+        String message = null;
+        long nanos;
+        final StringWriter err = new StringWriter();
+
+        Job(int line, String output, String[] args) {
+            this.line = line;
+            this.output = output;
+            this.args = args;
+        }
+
+        protected void compute() {
+            long start = System.nanoTime();
+            File out = new File(output);
+            try {
+                try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"))) {
+                    Score.run(args, w, new PrintWriter(err));
+                }
+                status = 0;
+            } catch (Score.Exit e) {
+                status = e.status;
+                message = e.getMessage().split("\n")[0];
+            } catch (Err.FormatException e) {
+                status = 65;            // EX_DATAERR
+                message = e.getMessage();
+            } catch (IOException | UncheckedIOException e) {
+                status = 74;            // EX_IOERR
+                message = e.toString();
+            } catch (RuntimeException e) {
+                status = 70;            // EX_SOFTWARE
+                message = e.toString();
+            }
+            if (status != 0) { out.delete(); }
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /** Reads the jobs of a manifest. */
+    public static List<Job> parseManifest(BufferedReader r) throws IOException {
+        ArrayList<Job> jobs = new ArrayList<Job>();
+        String line;
+        for (int n = 1; (line = r.readLine()) != null; n++) {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') { continue; }
+            String[] words = line.split("\\s+");
+            jobs.add(new Job(n, words[0], Arrays.copyOfRange(words, 1, words.length)));
+        }
+        return jobs;
+    }
+
+    /** Runs the jobs on a pool of the given number of threads. Returns the
+      * number of jobs that failed. */
+    public static int run(List<Job> jobs, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new RecursiveAction() {
+                    protected void compute() { invokeAll(jobs); }
+                });
+        } finally {
+            pool.shutdown();
+        }
+        int failed = 0;
+        for (Job job : jobs) {
+            if (job.status != 0) { failed++; }
+        }
+        return failed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        if (args.length == 3 && "-j".equals(args[0])) {
+            threads = Integer.parseInt(args[1]);
+            i = 2;
+        }
+        if (args.length - i != 1 || threads < 1) {
+            System.err.println(HELP_MSG);
+            System.exit(64);    // EX_USAGE
+        }
+        List<Job> jobs;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(args[i]), "UTF-8"))) {
+            jobs = parseManifest(r);
+        } catch (FileNotFoundException e) {
+            System.err.println("Failed to open manifest: " + e);
+            System.exit(66);    // EX_NOINPUT
+            throw new IllegalStateException(); // unreachable
+        }
+        long start = System.nanoTime();
+        int failed = run(jobs, threads);
+        long nanos = System.nanoTime() - start;
+
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        for (Job job : jobs) {
+            w.format("%d\t|%s\t|%10.3f ms\t|%s\n", job.line, job.output, job.nanos / 1e6,
+                     job.status == 0 ? "ok" : "failed (" + job.status + "): " + job.message);
+        }
+        w.format("%d jobs, %d failed, %.3f ms on %d threads\n", jobs.size(), failed, nanos / 1e6, threads);
+        for (Job job : jobs) {
+            if (job.err.getBuffer().length() > 0) {
+                w.format("\n%s:\n%s", job.output, job.err);
+            }
+        }
+        w.flush();
+        System.exit(failed == 0 ? 0 : 65);      // EX_DATAERR
+    }
+}
@@ -17,6 +17,14 @@ public abstract class Question {
         }
     }
 
+    // Copy of orig, with another max score.
+    private Question(Question orig, double maxScore) {
+        this.page = orig.page;
+        this.problem = orig.problem;
+        this.subProblem = orig.subProblem;
+        this.maxScore = maxScore;
+    }
+
     public String name() {
         StringBuilder b = new StringBuilder();
         b.append(Integer.toString(problem));
@@ -34,6 +42,20 @@ public abstract class Question {
 
     public abstract double rescaleFactor();
 
+    /** Returns a copy of this question with another max score. */
+    abstract Question withMaxScore(double maxScore);
+
+    /** Returns a copy of this question with another correct option, given
+      * as in the correct-answer file. */
+    Question withCorrect(String option) {
+        throw new Err.FormatException("Not a multiple choice question").setProblem(name());
+    }
+
+    /** Returns a copy of this question with another rescale factor. */
+    Question withRescale(double rescale) {
+        throw new Err.FormatException("Not an essay question").setProblem(name());
+    }
+
     private static double log2(double x) { return Math.log(x) / Math.log(2); }
 
     private static class MultiQuestion extends Question {
@@ -50,6 +72,26 @@ public abstract class Question {
             this.multLetterBase = multLetterBase;
 	}
 
+	private MultiQuestion(MultiQuestion orig, int correct, double maxScore) {
+	    super(orig, maxScore);
+	    Err.conf(correct >= 1 && correct <= orig.k, "Option out of range");
+	    this.k = orig.k;
+	    this.correct = correct;
+	    scaleFactor = maxScore / log2(k);
+	    this.multLetterBase = orig.multLetterBase;
+	}
+
+	Question withMaxScore(double maxScore) { return new MultiQuestion(this, correct, maxScore); }
+
+	Question withCorrect(String option) {
+	    try {
+		Err.conf(option.length() == 1, "One option expected: " + option);
+		return new MultiQuestion(this, Character.toUpperCase(option.charAt(0)) - multLetterBase, maxScore);
+	    } catch (Err.FormatException fe) {
+		throw fe.setProblem(name());
+	    }
+	}
+
 	public double score(String answer) {
 	    boolean c = false;
 	    int a = answer.length();
@@ -88,6 +130,15 @@ public abstract class Question {
 	    super(pred, page, problem, maxScore);
             this.rescale = rescale;
 	}
+
+	private EssayQuestion(EssayQuestion orig, double maxScore, double rescale) {
+	    super(orig, maxScore);
+	    this.rescale = rescale;
+	}
+
+	Question withMaxScore(double maxScore) { return new EssayQuestion(this, maxScore, rescale); }
+
+	Question withRescale(double rescale) { return new EssayQuestion(this, maxScore, rescale); }
       
 	public double score(String answer) {
 	    if ("-".equals(answer)) { return 0.0; }
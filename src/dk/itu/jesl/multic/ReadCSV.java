@@ -70,6 +70,70 @@ public class ReadCSV {
         return b.length() == 0 ? "-" : b.toString();
     }
 
+    /** Reads CSV one line at a time, so that input of any size can be
+      * processed. Unlike readFile, fields are returned as they are: not
+      * trimmed, and an empty field is null unless quoted. Quoted fields may
+      * contain the delimiter, line breaks, and quotes written as "". */
+    public static class Streaming implements Closeable {
+        private final Reader r;
+        private final int delim;
+        private int c;
+        private long line = 0;
+
+        public Streaming(Reader r, char delim) {
+            this.r = r instanceof BufferedReader ? r : new BufferedReader(r, 1 << 16);
+            this.delim = delim;
+        }
+
+        /** Returns the fields of the next line, or null at end of input. */
+        public String[] next() throws IOException {
+            c = r.read();
+            if (c < 0) { return null; }
+            line++;
+            ArrayList<String> fields = new ArrayList<String>();
+            StringBuilder b = new StringBuilder();
+            while (true) {
+                b.setLength(0);
+                boolean quoted = c == '"';
+                if (quoted) {
+                    while (true) {
+                        c = r.read();
+                        if (c < 0) { throw new CSVFormatException("Unterminated quote on line " + line); }
+                        if (c == '"') {
+                            c = r.read();
+                            if (c != '"') { break; }
+                        }
+                        b.append((char) c);
+                    }
+                } else {
+                    while (c >= 0 && c != delim && c != '\n') {
+                        b.append((char) c);
+                        c = r.read();
+                    }
+                }
+                int n = b.length();
+                if (c != delim && n > 0 && b.charAt(n-1) == '\r') { b.setLength(--n); } // CRLF
+                fields.add(n == 0 && !quoted ? null : b.toString());
+                if (c == delim) {
+                    c = r.read();
+                } else if (c == '\n' || c < 0) {
+                    return fields.toArray(new String[fields.size()]);
+                } else if (c == '\r') {
+                    c = r.read();
+                    if (c == '\n' || c < 0) { return fields.toArray(new String[fields.size()]); }
+                    throw new CSVFormatException("Garbage after quoted field on line " + line);
+                } else {
+                    throw new CSVFormatException("Garbage after quoted field on line " + line);
+                }
+            }
+        }
+
+        /** Returns the number of the line last returned by next. */
+        public long lineNumber() { return line; }
+
+        public void close() throws IOException { r.close(); }
+    }
+
     public static void main(String[] args) throws IOException {
         String[][] f = readFile(args[0]);
         System.out.println(f.length + " lines of " + f[0].length + " fields");
@@ -1,6 +1,8 @@
 package dk.itu.jesl.multic;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class Score {
     private static String HELP_MSG =
@@ -10,19 +12,27 @@ public class Score {
         "   -p:           Individual points (can't combine with -d)\n" +
         "   -A:           Choices are A, B, C (not 1, 2, 3)\n" +
         "   -F:           Read answers in student-submitted format from individual files\n" +
+        "   -t:           Print the time spent in each phase to standard error\n" +
         "   -h or --help: Print this message and quit";
 
+    /** Thrown by run instead of exiting, with the status main exits with. */
+    public static class Exit extends RuntimeException {
+        public final int status;
+
+        Exit(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
     private static BufferedReader openFile(String[] args, int i, String what) {
         String name = null;
         try {
             name = args[i];
             return new BufferedReader(new InputStreamReader(new FileInputStream(name), "UTF-8"));
         } catch (Exception e) {
-            System.err.print("Failed to open " + what);
-            if (name != null) { System.err.print(" " + name); }
-            System.err.println(": " + e);
-            System.exit(66);    // EX_NOINPUT
-            throw new IllegalStateException(); // unreachable
+            throw new Exit(66,          // EX_NOINPUT
+                           "Failed to open " + what + (name != null ? " " + name : "") + ": " + e);
         }
     }
 
@@ -32,54 +42,127 @@ public class Score {
         else             { stud.reportScore(w); }
     }
 
+    private static int questionCount(Question[][] corr) {
+        int n = 0;
+        for (Question[] page : corr) { n += page.length; }
+        return n;
+    }
+
     public static void main(String[] args) throws IOException {
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        PrintWriter err = new PrintWriter(new OutputStreamWriter(System.err, "UTF-8"));
+        try {
+            run(args, w, err);
+        } catch (Exit e) {
+            w.flush();
+            if (e.status == 0) { System.out.println(e.getMessage()); }
+            else               { System.err.println(e.getMessage()); }
+            System.exit(e.status);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Scores as main does with the given arguments, writing the scores to w
+     * and the timing of -t to err, but throws Exit where main would exit.
+     * Run within a ForkJoinPool, the student files of -F are parsed as
+     * tasks in the pool; otherwise they are parsed one at a time.
+     */
+    public static void run(String[] args, PrintWriter w, PrintWriter err) throws IOException {
         int i = 0;
         boolean detail = false;
         boolean files = false;
         boolean points = false;
+        Timing timing = null;
         int multLetterBase = '0';
         while (i < args.length && args[i].charAt(0) == '-') {
             if ("-d".equals(args[i])) {
                 detail = true;
             } else if ("-h".equals(args[i]) || "--help".equals(args[i])) {
-                System.out.println(HELP_MSG);
-                System.exit(0);
+                throw new Exit(0, HELP_MSG);
             } else if ("-A".equals(args[i])) {
                 multLetterBase = 'A'-1;
             } else if ("-F".equals(args[i])) {
                 files = true;
             } else if ("-p".equals(args[i])) {
                 points = true;
+            } else if ("-t".equals(args[i])) {
+                timing = new Timing();
             } else {
-                System.err.println("Unrecognized option: " + args[i]);
-                System.exit(64);        // EX_USAGE
+                throw new Exit(64, "Unrecognized option: " + args[i]);     // EX_USAGE
             }
             i++;
         }
         if (args.length-i < 2 || !files && args.length-i > 2) {
-            System.out.println(HELP_MSG);
-            System.exit(64);    // EX_USAGE
+            throw new Exit(64, HELP_MSG);       // EX_USAGE
         }
-        PrintWriter w = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        Timing t = timing != null ? timing : new Timing();
         if (files) {
-            Question[][] corr = CorrectAnswer.parseProblems(openFile(args, i++, "correct answer"), multLetterBase);
-            while (i < args.length) {
-                BufferedReader studFile = openFile(args, i, "single student answers");
-                Student stud = Student.parseF(studFile, corr, args[i]);
-                studFile.close();
-                i++;
-                report(stud, w, detail, points);
+            Timing.Phase phase = t.start(Timing.CORRECT);
+            Question[][] corr;
+            try (BufferedReader corrFile = openFile(args, i++, "correct answer")) {
+                corr = CorrectAnswer.parseProblems(corrFile, multLetterBase);
+            }
+            phase.end(questionCount(corr));
+            if (ForkJoinTask.inForkJoinPool()) {
+                ArrayList<ForkJoinTask<Student>> parsed = new ArrayList<ForkJoinTask<Student>>();
+                for (; i < args.length; i++) {
+                    parsed.add(parseFile(args, i, corr, t, timing).fork());
+                }
+                for (ForkJoinTask<Student> task : parsed) {
+                    Student stud = task.join();
+                    phase = t.start(Timing.REPORT);
+                    report(stud, w, detail, points);
+                    phase.end(1);
+                }
+            } else {
+                for (; i < args.length; i++) {
+                    Student stud = parseFile(args, i, corr, t, timing).invoke();
+                    phase = t.start(Timing.REPORT);
+                    report(stud, w, detail, points);
+                    phase.end(1);
+                }
             }
         } else {
-            Question[][] corr = CorrectAnswer.parsePages(openFile(args, i++, "correct answer"), multLetterBase);
-            BufferedReader ansFile = openFile(args, i++, "given answers");
-            while (true) {
-                Student stud = Student.parse(ansFile, corr);
-                if (stud == null) { break; }
-                report(stud, w, detail, points);
+            Timing.Phase phase = t.start(Timing.CORRECT);
+            Question[][] corr;
+            try (BufferedReader corrFile = openFile(args, i++, "correct answer")) {
+                corr = CorrectAnswer.parsePages(corrFile, multLetterBase);
+            }
+            phase.end(questionCount(corr));
+            try (BufferedReader ansFile = openFile(args, i++, "given answers")) {
+                while (true) {
+                    phase = t.start(Timing.PARSE);
+                    Student stud = Student.parse(ansFile, corr, timing);
+                    if (stud == null) { break; }
+                    phase.end(1);
+                    phase = t.start(Timing.REPORT);
+                    report(stud, w, detail, points);
+                    phase.end(1);
+                }
             }
         }
         w.flush();
-        System.exit(0);
+        if (timing != null) {
+            timing.report(err);
+            err.flush();
+        }
+    }
+
+    // Parses the student answers file args[i].
+    private static ForkJoinTask<Student> parseFile(final String[] args, final int i, final Question[][] corr,
+                                                   final Timing t, final Timing timing) {
+        return new RecursiveTask<Student>() {
+            protected Student compute() {
+                Timing.Phase phase = t.start(Timing.PARSE);
+                try (BufferedReader studFile = openFile(args, i, "single student answers")) {
+                    Student stud = Student.parseF(studFile, corr, args[i], timing);
+                    phase.end(1);
+                    return stud;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
     }
 }
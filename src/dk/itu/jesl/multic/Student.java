@@ -12,18 +12,65 @@ public class Student {
     private ArrayList<String> pending = new ArrayList<String>();
     private ArrayList<String> missing = new ArrayList<String>();
     private ArrayList<Double> scores = new ArrayList<Double>();
+    private IdentityHashMap<Question, String> answers = null;   // only if kept, for WhatIf
+
+    private Timing timing = null;
 
     public static Student parse(BufferedReader r, Question[][] corr) throws IOException {
+        return parse(r, corr, null);
+    }
+
+    /** As parse, adding the time spent scoring answers to timing, if not null. */
+    public static Student parse(BufferedReader r, Question[][] corr, Timing timing) throws IOException {
+        return parse(r, corr, timing, false);
+    }
+
+    /** As parse, also keeping the answers given, if keepAnswers. */
+    static Student parse(BufferedReader r, Question[][] corr, Timing timing, boolean keepAnswers) throws IOException {
 	Student stud = new Student();
-	if (stud.parseNonstatic(r, corr)) { return stud; }
+        stud.timing = timing;
+        if (keepAnswers) { stud.answers = new IdentityHashMap<Question, String>(); }
+        Timing.StudentEvent event = Timing.beginStudent();
+	if (stud.parseNonstatic(r, corr)) { return stud.parsed(event); }
 	else { return null; }
     }
 
     public static Student parseF(BufferedReader r, Question[][] corr, String name) throws IOException {
+        return parseF(r, corr, name, null);
+    }
+
+    /** As parseF, adding the time spent scoring answers to timing, if not null. */
+    public static Student parseF(BufferedReader r, Question[][] corr, String name, Timing timing) throws IOException {
+        return parseF(r, corr, name, timing, false);
+    }
+
+    /** As parseF, also keeping the answers given, if keepAnswers. */
+    static Student parseF(BufferedReader r, Question[][] corr, String name, Timing timing, boolean keepAnswers)
+        throws IOException {
 	Student stud = new Student();
         stud.name = name;
+        stud.timing = timing;
+        if (keepAnswers) { stud.answers = new IdentityHashMap<Question, String>(); }
+        Timing.StudentEvent event = Timing.beginStudent();
 	stud.parseNonstaticF(r, corr);
-	return stud;
+	return stud.parsed(event);
+    }
+
+    private Student parsed(Timing.StudentEvent event) {
+        Timing.endStudent(event, name, scores.size(), score);
+        timing = null;
+        return this;
+    }
+
+    public String name() { return name; }
+
+    public double score() { return score; }
+
+    /** Returns the answer given to q, or null if it was not answered.
+      * Only for a student parsed with keepAnswers. */
+    String answer(Question q) {
+        if (answers == null) { throw new IllegalStateException("Answers of " + name + " not kept"); }
+        return answers.get(q);
     }
 
     public void reportScore(PrintWriter w) {
@@ -195,7 +242,15 @@ public class Student {
             missing.add(q.name());
             return;
         }
-        double qs = q.score(ans);
+        double qs;
+        if (timing == null) {
+            qs = q.score(ans);
+        } else {
+            long start = System.nanoTime();
+            qs = q.score(ans);
+            timing.add(Timing.SCORE, System.nanoTime() - start, 1);
+        }
+        if (answers != null) { answers.put(q, ans); }
         if (Double.isNaN(qs)) {
             throw new Err.FormatException("Not a number");
             // pending.add(q.name()); 
@@ -0,0 +1,111 @@
+package dk.itu.jesl.multic;
+
+import java.io.*;
+import jdk.jfr.*;
+
+/**
+ * Time spent in the phases of a Score run, with counts of the work done in
+ * each. The phases are also recorded as Java Flight Recorder events, as is
+ * each student parsed, when a recording was started with the JVM, for
+ * example with -XX:StartFlightRecording. Otherwise the event classes are
+ * never loaded, as even loading them takes JFR a good part of a second.
+ */
+public class Timing {
+    public static final int CORRECT = 0, PARSE = 1, SCORE = 2, REPORT = 3;
+    private static final String[] NAMES = { "correct", "parse", "score", "report" };
+    private static final String[] UNITS = { "questions", "students", "answers", "students" };
+
+    private static final boolean RECORDING = FlightRecorder.isInitialized();
+
+    private final long[] nanos = new long[NAMES.length];
+    private final long[] counts = new long[NAMES.length];
+
+    @Name("dk.itu.jesl.multic.Phase")
+    @Label("Score Phase")
+    @Category("Multic")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("Phase") String phase;
+        @Label("Count") long count;
+    }
+
+    @Name("dk.itu.jesl.multic.StudentParse")
+    @Label("Student Parse")
+    @Category("Multic")
+    @StackTrace(false)
+    static class StudentEvent extends Event {
+        @Label("Student") String student;
+        @Label("Answers") int answers;
+        @Label("Score") double score;
+    }
+
+    /** A phase in progress, ended by calling end with the count of work. */
+    public final class Phase {
+        private final int phase;
+        private final PhaseEvent event;
+        private final long start;
+
+        private Phase(int phase) {
+            this.phase = phase;
+            if (RECORDING) {
+                event = new PhaseEvent();
+                event.begin();
+            } else {
+                event = null;
+            }
+            start = System.nanoTime();
+        }
+
+        public void end(long count) {
+            add(phase, System.nanoTime() - start, count);
+            if (event != null && event.shouldCommit()) {
+                event.phase = NAMES[phase];
+                event.count = count;
+                event.commit();
+            }
+        }
+    }
+
+    public Phase start(int phase) { return new Phase(phase); }
+
+    /** Adds time and count to a phase. */
+    public synchronized void add(int phase, long nanos, long count) {
+        this.nanos[phase] += nanos;
+        counts[phase] += count;
+    }
+
+    /** Adds the times and counts of another timing to this one. */
+    public synchronized void add(Timing t) {
+        for (int i = 0; i < NAMES.length; i++) { add(i, t.nanos[i], t.counts[i]); }
+    }
+
+    static StudentEvent beginStudent() {
+        if (!RECORDING) { return null; }
+        StudentEvent e = new StudentEvent();
+        e.begin();
+        return e;
+    }
+
+    static void endStudent(StudentEvent e, String name, int answers, double score) {
+        if (e != null && e.shouldCommit()) {
+            e.student = name;
+            e.answers = answers;
+            e.score = score;
+            e.commit();
+        }
+    }
+
+    /** Writes a table of the time, count and throughput of each phase.
+      * Parse time is reported without the time spent scoring answers. */
+    public synchronized void report(PrintWriter w) {
+        long total = 0;
+        w.format("%-8s %10s %10s %12s\n", "phase", "ms", "count", "per second");
+        for (int i = 0; i < NAMES.length; i++) {
+            long ns = i == PARSE ? nanos[i] - nanos[SCORE] : nanos[i];
+            total += ns;
+            w.format("%-8s %10.3f %10d %12.0f %s\n", NAMES[i], ns / 1e6, counts[i],
+                     ns > 0 ? counts[i] * 1e9 / ns : 0.0, UNITS[i]);
+        }
+        w.format("%-8s %10.3f\n", "total", total / 1e6);
+    }
+}
@@ -0,0 +1,213 @@
+package dk.itu.jesl.multic;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the answers of a cohort of students in memory, to see how changes
+ * to the correct answers affect the scores. The contribution of every
+ * question to every student's total is kept in a table with a column per
+ * question. Changing a question rescores that column only, and updates the
+ * totals by the difference.
+ */
+public class WhatIf {
+    private static String HELP_MSG =
+        "Arguments: [-A] [-F] correct_answers_file given_answers_file...\n" +
+        "Reads the answers as Score does, then reads commands from standard input:\n" +
+        "   key q option:     Make option the correct answer to multiple choice question q\n" +
+        "   max q score:      Change the max score of question q\n" +
+        "   rescale q factor: Change the rescale factor of essay question q\n" +
+        "   drop q:           Give no points for question q\n" +
+        "   restore q:        Give points for dropped question q again\n" +
+        "   rank [n]:         Print the first n students (all) by total score\n" +
+        "   quit";
+
+    private final Question[] questions;
+    private final Student[] students;
+    private final boolean[] dropped;
+    private final String[][] answers;       // [question][student], null if missing
+    private final double[][] contrib;       // [question][student]
+    private final double[] totals;
+
+    /** The students must have been parsed with their answers kept. */
+    public WhatIf(Question[][] corr, List<Student> students) {
+        ArrayList<Question> qs = new ArrayList<Question>();
+        for (Question[] page : corr) { qs.addAll(Arrays.asList(page)); }
+        this.questions = qs.toArray(new Question[qs.size()]);
+        this.students = students.toArray(new Student[students.size()]);
+        dropped = new boolean[questions.length];
+        answers = new String[questions.length][this.students.length];
+        contrib = new double[questions.length][];
+        totals = new double[this.students.length];
+        for (int j = 0; j < questions.length; j++) {
+            for (int s = 0; s < totals.length; s++) { answers[j][s] = this.students[s].answer(questions[j]); }
+            contrib[j] = scoreColumn(j, questions[j]);
+            for (int s = 0; s < totals.length; s++) { totals[s] += contrib[j][s]; }
+        }
+    }
+
+    // Scores all students' answers to question j as q, as Student does.
+    private double[] scoreColumn(int j, Question q) {
+        double[] c = new double[students.length];
+        for (int s = 0; s < c.length; s++) {
+            String ans = answers[j][s];
+            if (ans == null) { continue; }
+            try {
+                double qs = q.score(ans);
+                Err.conf(!Double.isNaN(qs), "Not a number");
+                c[s] = qs * q.rescaleFactor();
+            } catch (Err.FormatException fe) {
+                throw fe.setProblem(q.name()).setSection(students[s].name());
+            }
+        }
+        return c;
+    }
+
+    public int questionCount() { return questions.length; }
+
+    public int studentCount() { return students.length; }
+
+    /** Returns the index of the question with the given name. */
+    public int questionIndex(String name) {
+        for (int j = 0; j < questions.length; j++) {
+            if (questions[j].name().equals(name)) { return j; }
+        }
+        throw new Err.FormatException("No such question").setProblem(name);
+    }
+
+    public Question question(int j) { return questions[j]; }
+
+    public Student student(int s) { return students[s]; }
+
+    public double total(int s) { return totals[s]; }
+
+    /** Replaces question j, rescoring its column. If any answer can't be
+      * scored under the new question, nothing is changed. */
+    public void replace(int j, Question q) {
+        double[] c = dropped[j] ? new double[students.length] : scoreColumn(j, q);
+        questions[j] = q;
+        update(j, c);
+    }
+
+    /** Gives no points for question j. */
+    public void drop(int j) {
+        dropped[j] = true;
+        update(j, new double[students.length]);
+    }
+
+    /** Gives points for question j again after drop, as it is now. */
+    public void restore(int j) {
+        if (!dropped[j]) { return; }
+        double[] c = scoreColumn(j, questions[j]);
+        dropped[j] = false;
+        update(j, c);
+    }
+
+    private void update(int j, double[] c) {
+        double[] old = contrib[j];
+        for (int s = 0; s < totals.length; s++) { totals[s] += c[s] - old[s]; }
+        contrib[j] = c;
+    }
+
+    /** Returns the students' indices in order of decreasing total. */
+    public int[] ranking() {
+        Integer[] order = new Integer[students.length];
+        for (int s = 0; s < order.length; s++) { order[s] = s; }
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) { return Double.compare(totals[b], totals[a]); }
+            });
+        int[] r = new int[order.length];
+        for (int s = 0; s < r.length; s++) { r[s] = order[s]; }
+        return r;
+    }
+
+    /** Performs one command, writing its result. Returns false to quit. */
+    boolean command(String line, PrintWriter w) {
+        String[] words = line.trim().split("\\s+");
+        String cmd = words[0];
+        long start = System.nanoTime();
+        if ("quit".equals(cmd) || "q".equals(cmd)) {
+            return false;
+        } else if ("rank".equals(cmd)) {
+            int[] r = ranking();
+            int n = words.length > 1 ? Math.min(r.length, Integer.parseInt(words[1])) : r.length;
+            for (int i = 0; i < n; i++) {
+                w.format("%d\t|%s\t|%.2f\n", i + 1, students[r[i]].name(), totals[r[i]]);
+            }
+        } else if (words.length == 2 && "drop".equals(cmd)) {
+            drop(questionIndex(words[1]));
+        } else if (words.length == 2 && "restore".equals(cmd)) {
+            restore(questionIndex(words[1]));
+        } else if (words.length == 3 && "key".equals(cmd)) {
+            int j = questionIndex(words[1]);
+            replace(j, questions[j].withCorrect(words[2]));
+        } else if (words.length == 3 && "max".equals(cmd)) {
+            int j = questionIndex(words[1]);
+            replace(j, questions[j].withMaxScore(Double.parseDouble(words[2])));
+        } else if (words.length == 3 && "rescale".equals(cmd)) {
+            int j = questionIndex(words[1]);
+            replace(j, questions[j].withRescale(Double.parseDouble(words[2])));
+        } else if (cmd.length() > 0) {
+            w.println(HELP_MSG);
+            return true;
+        } else {
+            return true;
+        }
+        w.format("(%.3f ms)\n", (System.nanoTime() - start) / 1e6);
+        return true;
+    }
+
+    private static BufferedReader open(String name) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(name), "UTF-8"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int i = 0;
+        boolean files = false;
+        int multLetterBase = '0';
+        while (i < args.length && args[i].charAt(0) == '-') {
+            if ("-A".equals(args[i])) {
+                multLetterBase = 'A'-1;
+            } else if ("-F".equals(args[i])) {
+                files = true;
+            } else {
+                System.err.println(HELP_MSG);
+                System.exit(64);        // EX_USAGE
+            }
+            i++;
+        }
+        if (args.length-i < 2 || !files && args.length-i > 2) {
+            System.err.println(HELP_MSG);
+            System.exit(64);    // EX_USAGE
+        }
+        Question[][] corr;
+        ArrayList<Student> studs = new ArrayList<Student>();
+        if (files) {
+            corr = CorrectAnswer.parseProblems(open(args[i++]), multLetterBase);
+            for (; i < args.length; i++) {
+                try (BufferedReader r = open(args[i])) { studs.add(Student.parseF(r, corr, args[i], null, true)); }
+            }
+        } else {
+            corr = CorrectAnswer.parsePages(open(args[i++]), multLetterBase);
+            try (BufferedReader r = open(args[i])) {
+                Student stud;
+                while ((stud = Student.parse(r, corr, null, true)) != null) { studs.add(stud); }
+            }
+        }
+        WhatIf wi = new WhatIf(corr, studs);
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        w.format("%d students, %d questions\n", wi.studentCount(), wi.questionCount());
+        w.flush();
+        String line;
+        while ((line = in.readLine()) != null) {
+            try {
+                if (!wi.command(line, w)) { break; }
+            } catch (Err.FormatException | NumberFormatException e) {
+                w.println(e.getMessage());
+            }
+            w.flush();
+        }
+        w.flush();
+    }
+}
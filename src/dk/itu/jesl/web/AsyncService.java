@@ -0,0 +1,49 @@
+package dk.itu.jesl.web;
+
+import java.util.concurrent.*;
+
+/**
+ * Interface for a service that processes queries asynchronously. Failures,
+ * including SerialServer.HttpStatusException, are reported by completing
+ * the future exceptionally.
+ *
+ * @author Jesper Larsson, IT University of Copenhagen.
+ */
+public interface AsyncService {
+    /**
+     * Starts processing a query, returning a future for the result string.
+     */
+    CompletableFuture<String> processQuery(String query);
+
+    /**
+     * Returns an asynchronous service that calls a synchronous one in the
+     * calling thread, and returns an already completed future.
+     */
+    static AsyncService adapt(final SerialServer.Service service) {
+        return new AsyncService() {
+            public CompletableFuture<String> processQuery(String query) {
+                CompletableFuture<String> f = new CompletableFuture<String>();
+                try {
+                    f.complete(service.processQuery(query));
+                } catch (RuntimeException e) {
+                    f.completeExceptionally(e);
+                }
+                return f;
+            }
+        };
+    }
+
+    /**
+     * Returns an asynchronous service that calls a synchronous one on the
+     * given executor.
+     */
+    static AsyncService adapt(final SerialServer.Service service, final Executor executor) {
+        return new AsyncService() {
+            public CompletableFuture<String> processQuery(final String query) {
+                return CompletableFuture.supplyAsync(new java.util.function.Supplier<String>() {
+                        public String get() { return service.processQuery(query); }
+                    }, executor);
+            }
+        };
+    }
+}
@@ -0,0 +1,66 @@
+package dk.itu.jesl.web;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Service wrapper that lets identical queries that are in flight at the
+ * same time share one computation. The first caller of a query starts it
+ * on the underlying service; callers that arrive before it completes get
+ * the same result without calling the service again. Once completed, the
+ * result is not kept, so the next call computes it anew.
+ *
+ * @author Jesper Larsson, IT University of Copenhagen.
+ */
+public class CoalescingService implements AsyncService {
+    private final AsyncService service;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight =
+        new ConcurrentHashMap<String, CompletableFuture<String>>();
+    private final LongAdder calls = new LongAdder(), coalesced = new LongAdder();
+
+    public CoalescingService(AsyncService service) { this.service = service; }
+
+    public CoalescingService(SerialServer.Service service) { this(AsyncService.adapt(service)); }
+
+    /**
+     * Returns a future for the result of the query. Each caller gets its
+     * own copy, so that one caller cancelling does not affect the others.
+     */
+    public CompletableFuture<String> processQuery(final String query) {
+        calls.increment();
+        final CompletableFuture<String> mine = new CompletableFuture<String>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(query, mine);
+        if (running != null) {
+            coalesced.increment();
+            return running.copy();
+        }
+        CompletableFuture<String> result;
+        try {
+            result = service.processQuery(query);
+        } catch (Throwable t) {
+            // Even an Error must complete the future and leave inFlight,
+            // or later callers of the query would wait forever.
+            result = new CompletableFuture<String>();
+            result.completeExceptionally(t);
+        }
+        if (result == null) {
+            result = new CompletableFuture<String>();
+            result.completeExceptionally(new NullPointerException("Service returned no future"));
+        }
+        result.whenComplete(new BiConsumer<String, Throwable>() {
+                public void accept(String r, Throwable t) {
+                    inFlight.remove(query, mine);
+                    if (t != null) { mine.completeExceptionally(t); }
+                    else           { mine.complete(r); }
+                }
+            });
+        return mine.copy();
+    }
+
+    /** Returns the number of queries received. */
+    public long calls() { return calls.sum(); }
+
+    /** Returns the number of queries that shared a computation already in flight. */
+    public long coalesced() { return coalesced.sum(); }
+}
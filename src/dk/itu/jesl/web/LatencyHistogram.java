@@ -0,0 +1,87 @@
+package dk.itu.jesl.web;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Histogram of latencies in nanoseconds, with logarithmic buckets that are
+ * subdivided linearly in the style of HdrHistogram. Values are kept with a
+ * relative precision of about 1.6% over the full range of a long. Recording
+ * is lock-free and may be done from any number of threads concurrently.
+ *
+ * @author Jesper Larsson, IT University of Copenhagen.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;               // 128 sub-buckets
+    private static final int HALF = 1 << SUB_BITS - 1;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * HALF + 2 * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records one value. Negative values are counted as zero. */
+    public void record(long nanos) {
+        if (nanos < 0) { nanos = 0; }
+        counts.getAndIncrement(index(nanos));
+        total.increment();
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) { m = max.get(); }
+    }
+
+    /** Adds all values recorded in another histogram to this one. */
+    public void add(LatencyHistogram h) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = h.counts.get(i);
+            if (c != 0) { counts.getAndAdd(i, c); }
+        }
+        total.add(h.total.sum());
+        sum.add(h.sum.sum());
+        long hm = h.max.get();
+        long m = max.get();
+        while (hm > m && !max.compareAndSet(m, hm)) { m = max.get(); }
+    }
+
+    public long count() { return total.sum(); }
+
+    public long sum() { return sum.sum(); }
+
+    public long max() { return max.get(); }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /** Returns the value at the given quantile, 0.0 to 1.0, as the highest
+      * value that falls in the same bucket. Zero if the histogram is empty. */
+    public long quantile(double q) {
+        long n = 0;
+        long[] c = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) { n += c[i] = counts.get(i); }
+        if (n == 0) { return 0; }
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += c[i];
+            if (seen >= rank) { return Math.min(highestInBucket(i), max.get()); }
+        }
+        return max.get();
+    }
+
+    // Values below 2*HALF have their own bucket. Above that, the top
+    // SUB_BITS bits of the value select the bucket.
+    private static int index(long v) {
+        if (v < 2 * HALF) { return (int) v; }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+        return shift * HALF + (int) (v >>> shift);
+    }
+
+    private static long highestInBucket(int i) {
+        if (i < 2 * HALF) { return i; }
+        int shift = i / HALF - 1;
+        long top = i - shift * HALF;
+        return (top + 1 << shift) - 1;
+    }
+}
@@ -0,0 +1,248 @@
+package dk.itu.jesl.web;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for the HTTP server. Drives a server over loopback with a
+ * number of concurrent connections, and reports throughput and latency
+ * percentiles.
+ *
+ * In closed-loop mode each connection sends its next request as soon as the
+ * previous one is answered, and latency is the response time. In open-loop
+ * mode requests are issued on a fixed schedule, and latency is measured from
+ * the time a request was scheduled to be sent rather than when it actually
+ * was, so a stalled server is not hidden by the generator waiting for it
+ * (coordinated omission).
+ *
+ * Unless a host and port are given, a server running the given service
+ * (TalkbackService by default) is started in the same JVM as reference.
+ *
+ * @author Jesper Larsson, IT University of Copenhagen.
+ */
+public class LoadGenerator {
+    private static String HELP_MSG =
+        "Arguments: [options] [host:port]\n" +
+        "Options:\n" +
+        "   -c n:         Number of concurrent connections (default 16)\n" +
+        "   -d s:         Seconds to measure (default 10)\n" +
+        "   -w s:         Seconds of warmup before measuring (default 2)\n" +
+        "   -r n:         Open loop at n requests/second in total (default closed loop)\n" +
+        "   -u path:      Request path (default /talkback?q=hello)\n" +
+        "   -z:           Send Accept-Encoding: gzip\n" +
+        "   -S class:     Service to run in-process when no host is given\n" +
+        "                 (default dk.itu.jesl.web.TalkbackService)\n" +
+        "   -W n:         Worker threads of the in-process server (default 1)\n" +
+        "   -C:           Coalesce identical concurrent queries in the in-process server\n" +
+        "   -h or --help: Print this message and quit";
+
+    private final InetSocketAddress addr;
+    private final byte[] request;
+    private final int connections;
+    private final double rate;
+    private volatile long measureStart, measureEnd;
+
+    private static final int READ_TIMEOUT = 30000; // ms, counted as error
+
+    /**
+     * Constructor.
+     * @param addr The server to send requests to.
+     * @param path The request path, starting with a slash.
+     * @param gzip Whether to ask for gzip compressed responses.
+     * @param connections The number of concurrent connections.
+     * @param rate Total requests per second in open-loop mode, or 0 for closed loop.
+     */
+    public LoadGenerator(InetSocketAddress addr, String path, boolean gzip, int connections, double rate) {
+        this.addr = addr;
+        this.request = ("GET " + path + " HTTP/1.0\r\n" +
+                        "Host: " + addr.getHostString() + "\r\n" +
+                        (gzip ? "Accept-Encoding: gzip\r\n" : "") +
+                        "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.connections = connections;
+        this.rate = rate;
+    }
+
+    /** Outcome of a run. */
+    public static class Result {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public long errors = 0;
+        public double seconds;
+
+        public double throughput() { return latency.count() / seconds; }
+
+        public String toString() {
+            return String.format("%d requests, %d errors in %.2f s: %.1f req/s\n" +
+                                 "latency ms: mean %.3f  p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                                 latency.count(), errors, seconds, throughput(),
+                                 latency.mean() / 1e6, latency.quantile(0.5) / 1e6, latency.quantile(0.99) / 1e6,
+                                 latency.quantile(0.999) / 1e6, latency.max() / 1e6);
+        }
+    }
+
+    /**
+     * Runs warmup followed by measurement, and returns the measured result.
+     */
+    public Result run(double warmupSeconds, double seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        measureStart = start + (long) (warmupSeconds * 1e9);
+        measureEnd = measureStart + (long) (seconds * 1e9);
+        final Result[] results = new Result[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            final int id = i;
+            results[i] = new Result();
+            threads[i] = new Thread(new Runnable() {
+                    public void run() { drive(id, start, results[id]); }
+                }, "load-" + i);
+            threads[i].start();
+        }
+        Result total = new Result();
+        for (int i = 0; i < connections; i++) {
+            threads[i].join();
+            total.latency.add(results[i].latency);
+            total.errors += results[i].errors;
+        }
+        total.seconds = seconds;
+        return total;
+    }
+
+    // Sends requests from one connection until the end of measurement.
+    private void drive(int id, long start, Result res) {
+        long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+        // Spread the schedules of the connections evenly over one interval.
+        long intended = start + interval * id / connections;
+        byte[] buf = new byte[8192];
+        while (true) {
+            long sendTime;
+            if (interval > 0) {
+                long now;
+                while ((now = System.nanoTime()) < intended) { LockSupport.parkNanos(intended - now); }
+                sendTime = intended;
+                intended += interval;
+            } else {
+                sendTime = System.nanoTime();
+            }
+            if (sendTime >= measureEnd) { return; }
+            boolean ok = exchange(buf);
+            long latency = System.nanoTime() - sendTime;
+            if (sendTime >= measureStart) {
+                if (ok) { res.latency.record(latency); }
+                else    { res.errors++; }
+            }
+        }
+    }
+
+    // Sends one request and reads the whole response. Returns true if the
+    // response had status 200.
+    private boolean exchange(byte[] buf) {
+        try (Socket sock = new Socket()) {
+            sock.setTcpNoDelay(true);
+            sock.setSoTimeout(READ_TIMEOUT);
+            sock.connect(addr, READ_TIMEOUT);
+            sock.getOutputStream().write(request);
+            InputStream in = sock.getInputStream();
+            int n, len = 0;
+            boolean ok = false;
+            while ((n = in.read(buf, 0, buf.length)) > 0) {
+                if (len == 0 && n >= 12) {
+                    ok = buf[9] == '2' && buf[10] == '0' && buf[11] == '0';
+                }
+                len += n;
+            }
+            return ok;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Starts a server for the service on a free loopback port, and returns
+    // its address once it answers requests.
+    private static InetSocketAddress startServer(String serviceClass, int workers, boolean coalesce) throws Exception {
+        SerialServer.Service service = (SerialServer.Service)
+            Class.forName(serviceClass).getDeclaredConstructor().newInstance();
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) { port = probe.getLocalPort(); }
+        final SerialServer server = coalesce ?
+            new SerialServer(port, new CoalescingService(service), "talkback") :
+            new SerialServer(port, service, "talkback");
+        server.setWorkers(workers);
+        Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try { server.run(); } catch (IOException e) { e.printStackTrace(); }
+                }
+            }, "server");
+        t.setDaemon(true);
+        t.start();
+        InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        for (int i = 0; ; i++) {
+            try (Socket s = new Socket()) {
+                s.connect(addr);
+                s.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                InputStream in = s.getInputStream();
+                while (in.read() >= 0)
+                    ; // skip index page
+                return addr;
+            } catch (IOException e) {
+                if (i >= 100) { throw e; }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = 16;
+        double seconds = 10, warmup = 2, rate = 0;
+        String path = "/talkback?q=hello";
+        String serviceClass = "dk.itu.jesl.web.TalkbackService";
+        boolean gzip = false, coalesce = false;
+        int workers = 1;
+        int i = 0;
+        try {
+            while (i < args.length && args[i].charAt(0) == '-') {
+                if ("-c".equals(args[i])) {
+                    connections = Integer.parseInt(args[++i]);
+                } else if ("-d".equals(args[i])) {
+                    seconds = Double.parseDouble(args[++i]);
+                } else if ("-w".equals(args[i])) {
+                    warmup = Double.parseDouble(args[++i]);
+                } else if ("-r".equals(args[i])) {
+                    rate = Double.parseDouble(args[++i]);
+                } else if ("-u".equals(args[i])) {
+                    path = args[++i];
+                } else if ("-z".equals(args[i])) {
+                    gzip = true;
+                } else if ("-S".equals(args[i])) {
+                    serviceClass = args[++i];
+                } else if ("-W".equals(args[i])) {
+                    workers = Integer.parseInt(args[++i]);
+                } else if ("-C".equals(args[i])) {
+                    coalesce = true;
+                } else if ("-h".equals(args[i]) || "--help".equals(args[i])) {
+                    System.out.println(HELP_MSG);
+                    System.exit(0);
+                } else {
+                    System.err.println("Unrecognized option: " + args[i]);
+                    System.exit(64);        // EX_USAGE
+                }
+                i++;
+            }
+        } catch (RuntimeException e) {
+            System.out.println(HELP_MSG);
+            System.exit(64);        // EX_USAGE
+        }
+        InetSocketAddress addr;
+        if (i < args.length) {
+            int colon = args[i].lastIndexOf(':');
+            addr = new InetSocketAddress(args[i].substring(0, colon), Integer.parseInt(args[i].substring(colon + 1)));
+        } else {
+            addr = startServer(serviceClass, workers, coalesce);
+            System.out.println("Started " + serviceClass + " at " + addr);
+        }
+        System.out.println((rate > 0 ? "Open loop at " + rate + " req/s" : "Closed loop") +
+                           ", " + connections + " connections, " + path);
+        Result r = new LoadGenerator(addr, path, gzip, connections, rate).run(warmup, seconds);
+        System.out.println(r);
+    }
+}
@@ -2,10 +2,17 @@ package dk.itu.jesl.web;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
+import java.util.zip.*;
 
 /**
- * Simple subset of an HTTP server. Services GET requests in sequence.
+ * Simple subset of an HTTP server. Services GET requests in sequence, or
+ * with a fixed number of worker threads. Accepted connections wait in a
+ * bounded queue; when it is full, new connections are turned away with
+ * status 503 rather than allowed to pile up.
  *
  * @author Jesper Larsson, IT University of Copenhagen.
  */
@@ -60,10 +67,28 @@ public class SerialServer {
     public final static String STATUS_SERVICE_UNAVAILABLE = "HTTP/1.0 503 Service Unavailable";
 
     private final int port;
-    private final Service service;
+    private final AsyncService service;
     private final String indexHtml;
     private final Pattern queryUrl;
     private final Pattern httpRequest = Pattern.compile("([A-Z]+)\\s+/(\\S*)\\s+HTTP/\\S+\\s*");
+    private final Pattern acceptEncodingHeader = Pattern.compile("(?i)Accept-Encoding\\s*:(.*)");
+
+    /** Default size in bytes below which responses are sent uncompressed. */
+    public final static int DEFAULT_MIN_COMPRESS_SIZE = 1024;
+
+    /** Default memory budget in bytes for cached compressed responses. */
+    public final static long DEFAULT_COMPRESSION_CACHE_SIZE = 8L << 20;
+
+    private int minCompressSize = DEFAULT_MIN_COMPRESS_SIZE;
+    private CompressionCache compressionCache = new CompressionCache(DEFAULT_COMPRESSION_CACHE_SIZE);
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    private int workers = 1;
+    private int queueCapacity = 64;
+    private int readTimeout = 5000, writeTimeout = 10000;
+    private int maxRequestLine = 8192, maxHeaderSize = 16384;
+    private int retryAfter = 1;
+    private ScheduledExecutorService watchdog;
 
     /**
      * Constructor.
@@ -72,6 +97,19 @@ public class SerialServer {
      * @param serviceName The service name to appear in request URLs.
      */
     public SerialServer(int port, Service service, String serviceName) {
+        this(port, AsyncService.adapt(service), serviceName);
+    }
+
+    /**
+     * Constructor for an asynchronous service. Each worker waits for the
+     * result before handling its next request, so this is mainly useful
+     * with several workers and a service such as CoalescingService that
+     * lets concurrent requests share work.
+     * @param port The port to accept HTTP requests on.
+     * @param service The service to process queries.
+     * @param serviceName The service name to appear in request URLs.
+     */
+    public SerialServer(int port, AsyncService service, String serviceName) {
         this.port = port;
         this.service = service;
 	indexHtml = "<html xmlns=\"http://www.w3.org/1999/xhtml\">" +
@@ -82,6 +120,65 @@ public class SerialServer {
 	    "</form></body></html>";
 	queryUrl = Pattern.compile(serviceName + "\\?q=(.*)");
     }
+
+    /**
+     * Sets the response size below which no compression is done, even if
+     * the client accepts it. Use Integer.MAX_VALUE to turn compression off.
+     */
+    public void setMinCompressSize(int bytes) { minCompressSize = bytes; }
+
+    /**
+     * Sets the number of bytes of compressed responses to keep, so that
+     * static pages and repeated queries need not be compressed again. Zero
+     * turns caching off.
+     */
+    public void setCompressionCacheSize(long bytes) { compressionCache = new CompressionCache(bytes); }
+
+    /**
+     * Sets the number of threads that process requests. The default is 1,
+     * which handles one request at a time. With more than one, the service
+     * must be safe to call from several threads at once.
+     */
+    public void setWorkers(int n) { workers = n; }
+
+    /**
+     * Sets how many accepted connections may wait for a worker. Further
+     * connections get status 503 with a Retry-After header.
+     */
+    public void setQueueCapacity(int n) { queueCapacity = n; }
+
+    /**
+     * Sets the number of seconds clients are asked to wait before retrying
+     * when turned away.
+     */
+    public void setRetryAfter(int seconds) { retryAfter = seconds; }
+
+    /**
+     * Sets the time in milliseconds a client has to send its request line
+     * and headers. The connection is dropped if it takes longer.
+     */
+    public void setReadTimeout(int millis) { readTimeout = millis; }
+
+    /**
+     * Sets the time in milliseconds a response may take to send. The
+     * connection is dropped if it takes longer.
+     */
+    public void setWriteTimeout(int millis) { writeTimeout = millis; }
+
+    /**
+     * Sets the maximum length in bytes of the request line, and of the
+     * request headers in total.
+     */
+    public void setRequestLimits(int maxRequestLine, int maxHeaderSize) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Returns the metrics collected by this server. They are also served
+     * as plain text at the URL /metrics.
+     */
+    public ServerMetrics getMetrics() { return metrics; }
     
     /**
      * Runs the server forever. Queries received via HTTP are passed
@@ -91,32 +188,190 @@ public class SerialServer {
         ServerSocket serv = new ServerSocket(port);
         System.out.println("*** Awaiting requests at: http://" + InetAddress.getLocalHost().getHostName() + ":" + port + "/");
         System.out.println("(Terminate server by pressing \"ctrl C\")");
+        ScheduledThreadPoolExecutor wd = new ScheduledThreadPoolExecutor(1, daemonThreads("SerialServer-watchdog"));
+        wd.setRemoveOnCancelPolicy(true);
+        watchdog = wd;
+        final BlockingQueue<Accepted> queue = new ArrayBlockingQueue<Accepted>(queueCapacity);
+        ThreadFactory workerThreads = daemonThreads("SerialServer-worker");
+        for (int i = 0; i < workers; i++) {
+            workerThreads.newThread(new Runnable() {
+                    public void run() { work(queue); }
+                }).start();
+        }
         while (true) {
             Socket sock = serv.accept();
-            HtmlWriter w = new HtmlWriter(sock.getOutputStream());
-            String response;
+            metrics.connectionOpened();
+            metrics.enqueued();
+            if (!queue.offer(new Accepted(sock, System.nanoTime()))) {
+                metrics.dequeued();
+                shed(sock);
+            }
+        }
+    }
+
+    // A connection waiting for a worker, and when it was accepted.
+    private static class Accepted {
+        final Socket sock;
+        final long time;
+
+        Accepted(Socket sock, long time) {
+            this.sock = sock;
+            this.time = time;
+        }
+    }
+
+    // Takes connections from the queue and serves them, forever.
+    private void work(BlockingQueue<Accepted> queue) {
+        while (true) {
+            Socket sock;
+            try {
+                Accepted a = queue.take();
+                metrics.queue.record(System.nanoTime() - a.time);
+                sock = a.sock;
+            } catch (InterruptedException e) {
+                return;
+            }
+            metrics.dequeued();
             try {
-                response = processRequest(new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8")));
-            } catch (HttpStatusException e) {
-                w.open(e.getStatusLine(), "SEServer error");
-                w.write("<p>"); w.quote(e.getMessage()); w.write("</p>");
-                w.close();
-                continue;
-            } catch (Exception e) {
-                w.open(STATUS_INTERNAL_SERVER_ERROR, "SEServer error");
-                w.write("<p>"); w.quote(e.toString()); w.write("</p>");
-                w.writeStackTrace(e);
-                w.close();
-                continue;
+                sock.setSoTimeout(readTimeout);
+                serve(sock);
+            } catch (SocketTimeoutException e) {
+                metrics.timeout();
+            } catch (IOException e) {
+                // client went away, or was cut off by the watchdog
+            } finally {
+                closeQuietly(sock);
+                metrics.connectionClosed();
             }
-            w.open(STATUS_OK, "SEServer");
-            w.write(response);
+        }
+    }
+
+    // Turns away a connection when the queue is full. The response is small
+    // enough to fit in the socket send buffer, so this does not block the
+    // accepting thread.
+    private void shed(Socket sock) {
+        metrics.shed();
+        try {
+            HtmlWriter w = new HtmlWriter(new CountingOutputStream(sock.getOutputStream(), metrics),
+                                          Integer.MAX_VALUE, compressionCache, metrics);
+            w.addHeader("Retry-After: " + retryAfter);
+            w.open(STATUS_SERVICE_UNAVAILABLE, "SEServer busy");
+            w.write("<p>Server is overloaded, please try again later.</p>");
+            drainAvailable(sock);
             w.close();
+        } catch (IOException e) {
+            // nothing more to do
+        } finally {
+            closeQuietly(sock);
+            metrics.connectionClosed();
+        }
+    }
+
+    // Reads one request from the socket and writes the response.
+    private void serve(Socket sock) throws IOException {
+        HtmlWriter w = new HtmlWriter(new CountingOutputStream(sock.getOutputStream(), metrics),
+                                      minCompressSize, compressionCache, metrics);
+        InputStream in = new BufferedInputStream(new CountingInputStream(sock.getInputStream(), metrics));
+        String response;
+        // Bound the total time for the request, not only each read.
+        Future<?> alarm = watchdog.schedule(closer(sock), readTimeout, TimeUnit.MILLISECONDS);
+        try {
+            response = processRequest(in, w, alarm);
+        } catch (HttpStatusException e) {
+            alarm.cancel(false);
+            w.open(e.getStatusLine(), "SEServer error");
+            w.write("<p>"); w.quote(e.getMessage()); w.write("</p>");
+            send(sock, w);
+            lingerClose(sock);
+            return;
+        } catch (IOException e) {
+            if (!alarm.cancel(false) && !alarm.isCancelled()) { metrics.timeout(); }
+            throw e;
+        } catch (Exception e) {
+            alarm.cancel(false);
+            w.open(STATUS_INTERNAL_SERVER_ERROR, "SEServer error");
+            w.write("<p>"); w.quote(e.toString()); w.write("</p>");
+            w.writeStackTrace(e);
+            send(sock, w);
+            return;
+        }
+        w.open(STATUS_OK, "SEServer");
+        w.write(response);
+        send(sock, w);
+    }
+
+    // Sends the response, dropping the connection if it takes too long.
+    private void send(Socket sock, HtmlWriter w) throws IOException {
+        Future<?> alarm = watchdog.schedule(closer(sock), writeTimeout, TimeUnit.MILLISECONDS);
+        try {
+            w.close();
+        } finally {
+            if (!alarm.cancel(false)) { metrics.timeout(); }
+        }
+    }
+
+    // After an error response, the request may not have been read in full.
+    // Closing the socket with unread input would reset the connection,
+    // and the client might lose the response. So the output is shut down
+    // first, and the input read and discarded until the client closes,
+    // for at most the read timeout and LINGER_BYTES.
+    private void lingerClose(Socket sock) {
+        Future<?> alarm = watchdog.schedule(closer(sock), readTimeout, TimeUnit.MILLISECONDS);
+        try {
+            sock.shutdownOutput();
+            InputStream in = sock.getInputStream();
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int n;
+            while (total < LINGER_BYTES && (n = in.read(buf)) >= 0) { total += n; }
+        } catch (IOException e) {
+            // client went away, or took too long
+        } finally {
+            alarm.cancel(false);
+        }
+    }
+
+    private static final long LINGER_BYTES = 1 << 20;
+
+    private static Runnable closer(final Socket sock) {
+        return new Runnable() {
+            public void run() { closeQuietly(sock); }
+        };
+    }
+
+    private static void closeQuietly(Socket sock) {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // already gone
         }
     }
+
+    // Skips input the client has already sent, so that closing the socket
+    // does not reset the connection before the client reads the response.
+    private static void drainAvailable(Socket sock) throws IOException {
+        InputStream in = sock.getInputStream();
+        int n;
+        while ((n = in.available()) > 0) { in.skip(n); }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private int n = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + n++);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
     
-    private String processRequest(BufferedReader r) throws IOException {
-        String req = r.readLine();
+    private String processRequest(InputStream in, HtmlWriter w, Future<?> readAlarm) throws IOException {
+        long parseStart = System.nanoTime();
+        String req = readLine(in, new int[] { maxRequestLine + 2 }, "Request line too long");
+        if (req == null) {
+            throw new EOFException("No request");
+        }
         Matcher reqM = httpRequest.matcher(req);
         if (!reqM.matches()) {
             throw new HttpStatusException(STATUS_BAD_REQUEST, "Invalid request line: " + req);
@@ -124,20 +379,99 @@ public class SerialServer {
         String meth = reqM.group(1);
         String url = reqM.group(2);
 
-        while (r.readLine().length() > 0)
-            ; // ignore request headers
+        String header;
+        int[] headerBytesLeft = { maxHeaderSize };
+        while (true) {
+            header = readLine(in, headerBytesLeft, "Request headers too large");
+            if (header == null) { throw new EOFException("Incomplete request headers"); }
+            if (header.length() == 0) { break; }
+            Matcher aeM = acceptEncodingHeader.matcher(header);
+            if (aeM.matches()) {
+                w.setEncoding(chooseEncoding(aeM.group(1)));
+            } // ignore other request headers
+        }
+        readAlarm.cancel(false);
+        metrics.parse.record(System.nanoTime() - parseStart);
 
         if (!"GET".equals(meth)) {
             throw new HttpStatusException(STATUS_NOT_IMPLEMENTED, "Server cannot process " + meth);
         }
         if ("".equals(url) || "index.html".equals(url)) {
+            w.setCacheName("index.html");
             return indexHtml;
         }
+        if ("metrics".equals(url)) {
+            w.setPlainText();
+            return metrics.exposition();
+        }
         Matcher urlM = queryUrl.matcher(url);
         if (!urlM.matches()) {
             throw new HttpStatusException(STATUS_NOT_FOUND, "Page not found on server: " + url);
         }
-	return service.processQuery(translateUrl(new StringReader(urlM.group(1))));
+        String query = translateUrl(new StringReader(urlM.group(1)));
+        long processStart = System.nanoTime();
+        try {
+            String response = service.processQuery(query).get();
+            w.setCacheName("?q=" + query);
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpStatusException(STATUS_SERVICE_UNAVAILABLE, "Server shutting down");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            if (cause instanceof Error) { throw (Error) cause; }
+            throw new RuntimeException(cause);
+        } finally {
+            metrics.process.record(System.nanoTime() - processStart);
+        }
+    }
+
+    // Reads a line terminated by LF or CRLF, decoded as UTF-8, and takes the
+    // bytes read, terminator included, from left[0]. If they do not fit,
+    // stops reading and responds with status 400 and the message tooLong.
+    // Returns null at end of input.
+    private static String readLine(InputStream in, int[] left, String tooLong) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(128);
+        int c;
+        do {
+            if (--left[0] < 0) { throw new HttpStatusException(STATUS_BAD_REQUEST, tooLong); }
+            c = in.read();
+            if (c < 0) { return b.size() == 0 ? null : b.toString("UTF-8"); }
+            if (c != '\n') { b.write(c); }
+        } while (c != '\n');
+        int n = b.size();
+        byte[] a = b.toByteArray();
+        if (n > 0 && a[n-1] == '\r') { n--; }
+        return new String(a, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // Picks gzip or deflate from an Accept-Encoding value, or null for
+    // identity. Encodings with q=0 are excluded; gzip wins ties.
+    static String chooseEncoding(String acceptEncoding) {
+        String best = null;
+        double bestQ = 0;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split("\\s*;\\s*");
+            String coding = parts[0].toLowerCase();
+            double q = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(parts[i].substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if ("x-gzip".equals(coding)) { coding = "gzip"; }
+            if (("gzip".equals(coding) || "deflate".equals(coding)) &&
+                (q > bestQ || q == bestQ && "gzip".equals(coding))) {
+                best = coding;
+                bestQ = q;
+            }
+        }
+        return best;
     }
 
     // Translates any + to space, and decodes any %HH as multibyte UTF-8 sequences.
@@ -182,37 +516,89 @@ public class SerialServer {
         else throw new HttpStatusException(STATUS_BAD_REQUEST, "Invalid %HH code");
     }
 
-    // Writer specialized for HTML output.
+    // Writer specialized for HTML output. The page is collected in memory
+    // and sent on close, compressed if the client accepts it and the page is
+    // big enough. Can be switched to send plain text without HTML wrapping.
     private static class HtmlWriter extends Writer {
-        private final PrintWriter w;
+        private final OutputStream out;
+        private final int minCompressSize;
+        private final CompressionCache cache;
+        private final ServerMetrics metrics;
+        private final StringBuilder b = new StringBuilder();
+        private final StringBuilder extraHeaders = new StringBuilder();
+        private String statusLine, encoding, cacheName;
+        private boolean plain = false;
+        private long openTime;
 
-        public HtmlWriter(OutputStream out) throws IOException {
-            w = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        public HtmlWriter(OutputStream out, int minCompressSize, CompressionCache cache, ServerMetrics metrics) {
+            this.out = out;
+            this.minCompressSize = minCompressSize;
+            this.cache = cache;
+            this.metrics = metrics;
         }
 
-        public void write(int c) throws IOException { w.write(c); } 
-        public void write(char cbuf[], int off, int len) throws IOException { w.write(cbuf, off, len); }
-        public void write(String str, int off, int len) throws IOException { w.write(str, off, len); }
-        public void flush() throws IOException { w.flush(); }
+        public void write(int c) { b.append((char) c); }
+        public void write(char cbuf[], int off, int len) { b.append(cbuf, off, len); }
+        public void write(String str, int off, int len) { b.append(str, off, off + len); }
+        public void flush() { }
+
+        /** Sets content coding to use, "gzip", "deflate", or null for none. */
+        public void setEncoding(String encoding) { this.encoding = encoding; }
+
+        /** Adds a header line, without line terminator, to the response. */
+        public void addHeader(String header) { extraHeaders.append(header).append("\r\n"); }
+
+        /** Names the response as one that is likely to be sent again, so
+          * that its compressed copies are cached. A named response is
+          * compressed whatever its size, if compression is on at all. */
+        public void setCacheName(String name) { cacheName = name; }
+
+        /** Makes the response text/plain, with no HTML around it. */
+        public void setPlainText() { plain = true; }
 
         public void open(String statusLine, String title) {
-            w.write(statusLine); w.write("\r\n");
-            w.write("Content-Type: text/html; charset=UTF-8\r\n");
-            w.write("\r\n");
-            w.write("<html>\n<head>\n<meta http-equiv=\"Content-type\" content=\"text/html;charset=UTF-8\" />\n<title>");
-            w.write(title);
-            w.write("</title>\n</head>\n<body>\n");
+            openTime = System.nanoTime();
+            this.statusLine = statusLine;
+            if (plain) { return; }
+            b.append("<html>\n<head>\n<meta http-equiv=\"Content-type\" content=\"text/html;charset=UTF-8\" />\n<title>");
+            b.append(title);
+            b.append("</title>\n</head>\n<body>\n");
         }
 
         public void close() throws IOException {
-            w.write("\n</body>\n</html>\n");
-            w.close();
+            if (!plain) { b.append("\n</body>\n</html>\n"); }
+            byte[] body = b.toString().getBytes(StandardCharsets.UTF_8);
+            boolean compress = cacheName != null ? minCompressSize < Integer.MAX_VALUE :
+                                                   body.length >= minCompressSize;
+            String coding = encoding != null && compress ? encoding : null;
+            if (coding != null) {
+                byte[] z = cacheName != null ? cache.compress(coding, cacheName, body) :
+                                               CompressionCache.compress(coding, body);
+                if (z.length < body.length) { body = z; }
+                else                        { coding = null; }
+            }
+            StringBuilder h = new StringBuilder();
+            h.append(statusLine).append("\r\n");
+            h.append(plain ? "Content-Type: text/plain; version=0.0.4; charset=UTF-8\r\n" :
+                             "Content-Type: text/html; charset=UTF-8\r\n");
+            h.append("Content-Length: ").append(body.length).append("\r\n");
+            if (coding != null) {
+                h.append("Content-Encoding: ").append(coding).append("\r\n");
+            }
+            h.append("Vary: Accept-Encoding\r\n");
+            h.append(extraHeaders);
+            h.append("\r\n");
+            out.write(h.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(body);
+            out.flush();    // the socket is closed by the caller
+            metrics.status(statusLine);
+            metrics.write.record(System.nanoTime() - openTime);
         }
 
         public void quote(int c) throws IOException {
-            if      (c == '&') w.write("&amp;");
-            else if (c == '<') w.write("&lt;");
-            else               w.write(c);
+            if      (c == '&') write("&amp;");
+            else if (c == '<') write("&lt;");
+            else               write(c);
         }
 
         public void quote(CharSequence s) throws IOException {
@@ -222,9 +608,125 @@ public class SerialServer {
         }
 
         public void writeStackTrace(Throwable t) throws IOException {
-            w.write("\n<pre>");
-            t.printStackTrace(w);
-            w.write("</pre>\n");
+            write("\n<pre>");
+            PrintWriter pw = new PrintWriter(this);
+            t.printStackTrace(pw);
+            pw.flush();
+            write("</pre>\n");
+        }
+    }
+
+    // Input stream that adds the number of bytes read to the metrics.
+    private static class CountingInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        public int read() throws IOException {
+            int c = in.read();
+            if (c >= 0) { metrics.bytesIn(1); }
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) { metrics.bytesIn(n); }
+            return n;
+        }
+    }
+
+    // Output stream that adds the number of bytes written to the metrics.
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final ServerMetrics metrics;
+
+        CountingOutputStream(OutputStream out, ServerMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.bytesOut(1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.bytesOut(len);
+        }
+    }
+
+    // Compressed copies of repeatable responses, keyed by coding and a name
+    // for the response: a static page name, or a query. Since a service may
+    // answer the same query differently over time, an entry is used only if
+    // the length and checksums of the page match those it was made from.
+    // Entries are evicted least recently used first when over the byte
+    // budget. Pages are compressed outside the lock, so workers compress in
+    // parallel; two that miss at once both compress, and one copy is kept.
+    private static class CompressionCache {
+        private final long maxBytes;
+        private long bytes = 0;
+        private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private static class Entry {
+            final int length;
+            final long check;
+            final byte[] z;
+
+            Entry(int length, long check, byte[] z) {
+                this.length = length;
+                this.check = check;
+                this.z = z;
+            }
+        }
+
+        CompressionCache(long maxBytes) { this.maxBytes = maxBytes; }
+
+        // Returns raw compressed, from the cache if it was compressed before
+        // under the same name.
+        byte[] compress(String coding, String name, byte[] raw) throws IOException {
+            String key = coding + ':' + name;
+            long check = check(raw);
+            Entry e;
+            synchronized (this) { e = map.get(key); }
+            if (e != null && e.length == raw.length && e.check == check) { return e.z; }
+            e = new Entry(raw.length, check, compress(coding, raw));
+            synchronized (this) {
+                long size = entrySize(key, e);
+                if (size <= maxBytes) {
+                    Entry old = map.put(key, e);
+                    if (old != null) { bytes -= entrySize(key, old); }
+                    bytes += size;
+                    Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+                    while (bytes > maxBytes) {
+                        Map.Entry<String, Entry> x = it.next();
+                        bytes -= entrySize(x.getKey(), x.getValue());
+                        it.remove();
+                    }
+                }
+            }
+            return e.z;
+        }
+
+        // CRC-32 and a polynomial hash, together 64 bits.
+        private static long check(byte[] raw) {
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            return crc.getValue() << 32 ^ Arrays.hashCode(raw) & 0xffffffffL;
+        }
+
+        private static long entrySize(String key, Entry e) { return 2L * key.length() + e.z.length + 32; }
+
+        static byte[] compress(String coding, byte[] raw) throws IOException {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(raw.length / 4 + 64);
+            DeflaterOutputStream zout = "gzip".equals(coding) ?
+                new GZIPOutputStream(bout, 8192) :
+                new DeflaterOutputStream(bout);
+            zout.write(raw);
+            zout.close();
+            return bout.toByteArray();
         }
     }
 }
@@ -0,0 +1,114 @@
+package dk.itu.jesl.web;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counters and latency histograms for an HTTP server. All recording methods
+ * are lock-free, so they can be called on the request path of any number of
+ * threads. The collected values are rendered in the Prometheus plain-text
+ * exposition format by {@link #exposition}.
+ *
+ * @author Jesper Larsson, IT University of Copenhagen.
+ */
+public class ServerMetrics {
+    /** Time from accepting a connection until a worker takes it from the queue. */
+    public final LatencyHistogram queue = new LatencyHistogram();
+    /** Time to read and parse the request line and headers. */
+    public final LatencyHistogram parse = new LatencyHistogram();
+    /** Time spent in the service processing the query. */
+    public final LatencyHistogram process = new LatencyHistogram();
+    /** Time to format, encode and send the response. */
+    public final LatencyHistogram write = new LatencyHistogram();
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final AtomicLong active = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLongArray statusCounts = new AtomicLongArray(600);
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    public void connectionOpened() { connections.increment(); active.incrementAndGet(); }
+    public void connectionClosed() { active.decrementAndGet(); }
+
+    /** Called when a connection is put in, or taken from, the queue of
+      * accepted connections that wait to be processed. */
+    public void enqueued() { queued.incrementAndGet(); }
+    public void dequeued() { queued.decrementAndGet(); }
+
+    /** Called when a connection is turned away because the queue is full. */
+    public void shed() { shed.increment(); }
+
+    /** Called when a connection is dropped for reading or writing too slowly. */
+    public void timeout() { timeouts.increment(); }
+
+    public void bytesIn(long n) { bytesIn.add(n); }
+    public void bytesOut(long n) { bytesOut.add(n); }
+
+    /** Counts a response by the status code in its status line. */
+    public void status(String statusLine) {
+        int sp = statusLine.indexOf(' ');
+        int code = 0;
+        try {
+            code = Integer.parseInt(statusLine.substring(sp + 1, sp + 4));
+        } catch (RuntimeException e) {
+            // counted as code 0
+        }
+        statusCounts.getAndIncrement(code >= 0 && code < 600 ? code : 0);
+    }
+
+    public long activeConnections() { return active.get(); }
+    public long queueDepth() { return queued.get(); }
+
+    /** Returns all metrics in the Prometheus text format, version 0.0.4. */
+    public String exposition() {
+        StringBuilder b = new StringBuilder();
+        b.append("# HELP http_phase_seconds Time spent in each phase of request handling.\n");
+        b.append("# TYPE http_phase_seconds summary\n");
+        summary(b, "queue", queue);
+        summary(b, "parse", parse);
+        summary(b, "process", process);
+        summary(b, "write", write);
+
+        b.append("# HELP http_connections_total Connections accepted.\n");
+        b.append("# TYPE http_connections_total counter\n");
+        b.append("http_connections_total ").append(connections.sum()).append('\n');
+        b.append("# HELP http_responses_total Responses sent, by status code.\n");
+        b.append("# TYPE http_responses_total counter\n");
+        for (int i = 0; i < 600; i++) {
+            long n = statusCounts.get(i);
+            if (n > 0) { b.append("http_responses_total{code=\"").append(i).append("\"} ").append(n).append('\n'); }
+        }
+        b.append("# HELP http_shed_total Connections turned away because the queue was full.\n");
+        b.append("# TYPE http_shed_total counter\n");
+        b.append("http_shed_total ").append(shed.sum()).append('\n');
+        b.append("# HELP http_timeouts_total Connections dropped for reading or writing too slowly.\n");
+        b.append("# TYPE http_timeouts_total counter\n");
+        b.append("http_timeouts_total ").append(timeouts.sum()).append('\n');
+        b.append("# HELP http_received_bytes_total Bytes read from clients.\n");
+        b.append("# TYPE http_received_bytes_total counter\n");
+        b.append("http_received_bytes_total ").append(bytesIn.sum()).append('\n');
+        b.append("# HELP http_sent_bytes_total Bytes written to clients.\n");
+        b.append("# TYPE http_sent_bytes_total counter\n");
+        b.append("http_sent_bytes_total ").append(bytesOut.sum()).append('\n');
+        b.append("# HELP http_active_connections Connections currently being handled.\n");
+        b.append("# TYPE http_active_connections gauge\n");
+        b.append("http_active_connections ").append(active.get()).append('\n');
+        b.append("# HELP http_queue_depth Accepted connections waiting to be handled.\n");
+        b.append("# TYPE http_queue_depth gauge\n");
+        b.append("http_queue_depth ").append(queued.get()).append('\n');
+        return b.toString();
+    }
+
+    private static void summary(StringBuilder b, String phase, LatencyHistogram h) {
+        for (double q : QUANTILES) {
+            b.append("http_phase_seconds{phase=\"").append(phase).append("\",quantile=\"").append(q).append("\"} ");
+            b.append(h.quantile(q) / 1e9).append('\n');
+        }
+        b.append("http_phase_seconds_sum{phase=\"").append(phase).append("\"} ").append(h.sum() / 1e9).append('\n');
+        b.append("http_phase_seconds_count{phase=\"").append(phase).append("\"} ").append(h.count()).append('\n');
+    }
+}